@@ -0,0 +1,233 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import lombok.extern.slf4j.Slf4j;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.serializer.SerializerArrayTuple;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import static org.mapdb.Serializer.BYTE_ARRAY;
+import static org.mapdb.Serializer.LONG;
+import static org.mapdb.Serializer.STRING;
+
+/**
+ * Один файл памяти чатов для PersistentChatMemoryStore: MapDB с журналом сообщений (memoryId, номер) -> сообщение
+ * и картой старого формата(вся история одним json). У каждого файла своя блокировка и свой WAL, поэтому запись
+ * в разные файлы не ждёт друг друга. Обычные операции идут под read lock, компактизация и сброс WAL - под write lock
+ */
+@Slf4j
+public class ChatMemoryShard {
+
+    private final static String LEGACY_MAP_NAME = "messages";
+    private final static String MESSAGE_LOG_NAME = "message-log";
+    private final static String SHARD_COUNT_NAME = "shard-count";
+    private final static String LEGACY_FILE_IMPORTED_NAME = "legacy-file-imported";
+    private final static String COMPACTED_SUFFIX = ".compact";
+
+    private final Path file;
+    private final boolean mmap;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private DB db;
+    private Map<String, String> legacyMap;
+    private BTreeMap<Object[], byte[]> messageLog;
+
+    private final AtomicLong removedSinceCompaction = new AtomicLong();
+
+    public ChatMemoryShard(Path file, boolean mmap, int shardCount) {
+        this.file = file;
+        this.mmap = mmap;
+        deleteQuietly(compactedFile());
+        open();
+        checkShardCount(shardCount);
+    }
+
+    /**
+     * Открытие файла и сразу коммит: создание структур при первом запуске иначе остаётся в WAL до первой записи
+     */
+    private void open() {
+        db = maker(file).make();
+        legacyMap = db.hashMap(LEGACY_MAP_NAME, STRING, STRING).createOrOpen();
+        messageLog = messageLogMaker(db).createOrOpen();
+        db.commit();
+    }
+
+    private DBMaker.Maker maker(Path target) {
+        DBMaker.Maker maker = DBMaker.fileDB(target.toFile()).transactionEnable();
+        if (mmap) {
+            maker = maker.fileMmapEnableIfSupported().fileMmapPreclearDisable().cleanerHackEnable();
+        }
+        return maker;
+    }
+
+    private static DB.TreeMapMaker<Object[], byte[]> messageLogMaker(DB target) {
+        return target.treeMap(MESSAGE_LOG_NAME)
+                .keySerializer(new SerializerArrayTuple(STRING, LONG))
+                .valueSerializer(BYTE_ARRAY)
+                .valuesOutsideNodesEnable();
+    }
+
+    /**
+     * memoryId раскладываются по файлам по хэшу, при другом числе файлов чаты будут искаться не там
+     */
+    private void checkShardCount(int shardCount) {
+        Atomic.Integer recorded = db.atomicInteger(SHARD_COUNT_NAME).createOrOpen();
+        int recordedCount = recorded.get();
+        if (recordedCount == 0) {
+            recorded.set(shardCount);
+            db.commit();
+        } else if (recordedCount != shardCount) {
+            db.close();
+            throw new IllegalStateException("Файл " + file + " создан для " + recordedCount
+                    + " шардов памяти чатов, а настроено " + shardCount);
+        }
+    }
+
+    public Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * Обращаться только под readLock()
+     */
+    public BTreeMap<Object[], byte[]> messageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Обращаться только под readLock()
+     */
+    public Map<String, String> legacyMap() {
+        return legacyMap;
+    }
+
+    /**
+     * Отметка, что старый общий файл памяти уже перенесен в шарды, хранится в первом шарде
+     */
+    public boolean isLegacyFileImported() {
+        return db.atomicBoolean(LEGACY_FILE_IMPORTED_NAME).createOrOpen().get();
+    }
+
+    public void markLegacyFileImported() {
+        db.atomicBoolean(LEGACY_FILE_IMPORTED_NAME).createOrOpen().set(true);
+        db.commit();
+    }
+
+    public void commit() {
+        db.commit();
+    }
+
+    public void recordRemoved(long count) {
+        removedSinceCompaction.addAndGet(count);
+    }
+
+    public long removedSinceCompaction() {
+        return removedSinceCompaction.get();
+    }
+
+    /**
+     * Коммит под write lock: всё, что лежит в WAL, переносится в файл, а файлы WAL удаляются
+     */
+    public void checkpoint() {
+        lock.writeLock().lock();
+        try {
+            db.commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Удаленные записи оставляют в файле дыры, а compact() у хранилища с транзакциями в MapDB 3 ничего не делает.
+     * Поэтому живые записи переписываются подряд в новый файл, который атомарно подменяет старый.
+     * Журнал отсортирован по ключу, новое дерево строится потоково через sink
+     * @return сколько байт освободилось
+     */
+    public long compact() throws IOException {
+        long removed = removedSinceCompaction.get();
+        Path compacted = compactedFile();
+        lock.writeLock().lock();
+        try {
+            long sizeBefore = Files.size(file);
+            Files.deleteIfExists(compacted);
+            DB target = maker(compacted).make();
+            try {
+                DB.TreeMapSink<Object[], byte[]> sink = messageLogMaker(target).createFromSink();
+                for (Map.Entry<Object[], byte[]> entry : messageLog.entrySet()) {
+                    sink.put(entry.getKey(), entry.getValue());
+                }
+                sink.create();
+                target.hashMap(LEGACY_MAP_NAME, STRING, STRING).createOrOpen().putAll(legacyMap);
+                target.atomicInteger(SHARD_COUNT_NAME).createOrOpen().set(db.atomicInteger(SHARD_COUNT_NAME).open().get());
+                target.atomicBoolean(LEGACY_FILE_IMPORTED_NAME).createOrOpen().set(isLegacyFileImported());
+                target.commit();
+            } finally {
+                target.close();
+            }
+            db.close();
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            open();
+            removedSinceCompaction.addAndGet(-removed);
+            return sizeBefore - Files.size(file);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(compacted);
+            if (db.isClosed()) {
+                open();
+            }
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long fileSize() {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long walSize() {
+        String walPrefix = file.getFileName() + ".wal.";
+        try (Stream<Path> files = Files.list(file.toAbsolutePath().getParent())) {
+            return files
+                    .filter(candidate -> candidate.getFileName().toString().startsWith(walPrefix))
+                    .mapToLong(candidate -> candidate.toFile().length())
+                    .sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            db.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Path compactedFile() {
+        return file.resolveSibling(file.getFileName() + COMPACTED_SUFFIX);
+    }
+
+    private void deleteQuietly(Path target) {
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить {}: {}", target, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.mapper.PdfCompressor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Готовые сжатые копии больших pdf. Копия лежит в directory/<ключ>/<имя исходного файла>, ключ - хэш пути исходника,
+ * его размер и дата изменения, поэтому изменённый файл автоматически получает новую копию, а старые удаляются.
+ * Сжатие выполняется в фоне: при старте для всех больших pdf каталога и по событиям FileCatalog. События по файлу
+ * откладываются, пока его размер и дата изменения не перестанут меняться settle-seconds(файл может ещё копироваться).
+ * Неудачная попытка(ошибка или копия всё равно больше порога) запоминается по ключу, повтор - не раньше чем через
+ * retry-backoff-minutes, с удвоением до суток. Поиск файлов отдаёт только готовые копии и сам никогда не сжимает
+ */
+@Component
+@Slf4j
+public class CompressedPdfCache implements FileCatalog.Listener {
+
+    private final static String TEMP_SUFFIX = ".tmp";
+    private final static Duration MAX_RETRY_BACKOFF = Duration.ofHours(24);
+
+    private final FileCatalog fileCatalog;
+    private final PdfCompressor pdfCompressor;
+    private final Path directory;
+    private final long sizeThresholdBytes;
+    private final long settleMillis;
+    private final Duration retryBackoff;
+
+    private final ScheduledExecutorService compressor;
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final Set<Path> settlingFiles = ConcurrentHashMap.newKeySet();
+    private final Map<String, FailedAttempt> failedKeys = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong compressionTotalMillis = new AtomicLong();
+    private final AtomicLong skippedRetries = new AtomicLong();
+
+    /**
+     * @param retryAtMillis - раньше этого момента файл с тем же ключом заново не сжимается
+     */
+    private record FailedAttempt(int attempts, long retryAtMillis) {
+    }
+
+    public CompressedPdfCache(
+            FileCatalog fileCatalog,
+            PdfCompressor pdfCompressor,
+            @Value("${files.compressed-pdf.directory:app/compressed}") String directory,
+            @Value("${files.compressed-pdf.size-threshold-mb:50}") long sizeThresholdMb,
+            @Value("${files.compressed-pdf.settle-seconds:10}") long settleSeconds,
+            @Value("${files.compressed-pdf.retry-backoff-minutes:15}") long retryBackoffMinutes
+    ) {
+        this.fileCatalog = fileCatalog;
+        this.pdfCompressor = pdfCompressor;
+        this.directory = Paths.get(directory);
+        this.sizeThresholdBytes = sizeThresholdMb * 1024 * 1024;
+        this.settleMillis = TimeUnit.SECONDS.toMillis(settleSeconds);
+        this.retryBackoff = Duration.ofMinutes(retryBackoffMinutes);
+        this.compressor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pdf-precompressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        fileCatalog.addListener(this);
+        removeOrphanArtifacts();
+        fileCatalog.allFiles().forEach(this::onFileChanged);
+    }
+
+    /**
+     * Нужно ли отправлять вместо файла сжатую копию - pdf больше порога Telegram
+     */
+    public boolean needsCompression(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".pdf") && file.length() > sizeThresholdBytes;
+    }
+
+    /**
+     * Готовая сжатая копия для текущего содержимого файла. Если копии ещё нет - сжатие ставится в очередь,
+     * кроме файлов, сжатие которых недавно не удалось
+     */
+    public Optional<File> findReady(File source) {
+        Path artifact = artifactPath(source.toPath());
+        if (Files.isRegularFile(artifact)) {
+            hits.incrementAndGet();
+            return Optional.of(artifact.toFile());
+        }
+        misses.incrementAndGet();
+        schedule(source.toPath());
+        return Optional.empty();
+    }
+
+    /**
+     * Последняя попытка сжать текущее содержимое файла не удалась и повтор ещё не скоро
+     */
+    public boolean hasFailed(File source) {
+        FailedAttempt failedAttempt = failedKeys.get(artifactKey(source.toPath()));
+        return failedAttempt != null && failedAttempt.retryAtMillis() > System.currentTimeMillis();
+    }
+
+    @Override
+    public void onFileChanged(Path file) {
+        // порог размера проверяется после успокоения - копируемый файл поначалу может быть меньше
+        if (file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pdf") && settlingFiles.add(file)) {
+            File attributes = file.toFile();
+            awaitStable(file, attributes.length(), attributes.lastModified());
+        }
+    }
+
+    @Override
+    public void onFileRemoved(Path file) {
+        String sourcePrefix = pathHash(file) + "-";
+        failedKeys.keySet().removeIf(key -> key.startsWith(sourcePrefix));
+        compressor.execute(() -> removeArtifacts(file, null));
+    }
+
+    /**
+     * Сжатие ставится в очередь, только когда размер и дата изменения файла не менялись settleMillis
+     */
+    private void awaitStable(Path file, long size, long modified) {
+        compressor.schedule(() -> {
+            File current = file.toFile();
+            if (!current.isFile()) {
+                settlingFiles.remove(file);
+                return;
+            }
+            if (current.length() != size || current.lastModified() != modified) {
+                awaitStable(file, current.length(), current.lastModified());
+                return;
+            }
+            settlingFiles.remove(file);
+            if (needsCompression(current)) {
+                schedule(file);
+            }
+        }, settleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(Path source) {
+        String key = artifactKey(source);
+        FailedAttempt failedAttempt = failedKeys.get(key);
+        if (failedAttempt != null && failedAttempt.retryAtMillis() > System.currentTimeMillis()) {
+            skippedRetries.incrementAndGet();
+            return;
+        }
+        if (!pendingKeys.add(key)) {
+            return;
+        }
+        compressor.execute(() -> {
+            try {
+                compress(source, key);
+            } finally {
+                pendingKeys.remove(key);
+            }
+        });
+    }
+
+    private void compress(Path source, String key) {
+        Path artifact = directory.resolve(key).resolve(source.getFileName());
+        if (Files.isRegularFile(artifact) || !Files.isRegularFile(source)) {
+            return;
+        }
+        long startedAt = System.currentTimeMillis();
+        try {
+            Files.createDirectories(artifact.getParent());
+            Path tempArtifact = artifact.resolveSibling(source.getFileName() + TEMP_SUFFIX);
+            File compressedFile = pdfCompressor.compressToTargetSize(source.toFile(), tempArtifact.toString(), sizeThresholdBytes);
+            // копия больше порога всё равно не отправится, повторять сжатие сразу бессмысленно
+            if (compressedFile.length() > sizeThresholdBytes) {
+                Files.deleteIfExists(compressedFile.toPath());
+                recordFailure(key);
+                log.warn("Файл слишком большой после сжатия: {} ({} байт)", source.getFileName(), compressedFile.length());
+                return;
+            }
+            Files.move(compressedFile.toPath(), artifact, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            removeArtifacts(source, key);
+            failedKeys.remove(key);
+
+            compressed.incrementAndGet();
+            long tookMillis = System.currentTimeMillis() - startedAt;
+            compressionTotalMillis.addAndGet(tookMillis);
+            log.info("Сжатая копия {} готова за {} мс: {} -> {} байт", source.getFileName(), tookMillis,
+                    source.toFile().length(), artifact.toFile().length());
+        } catch (IOException | RuntimeException e) {
+            recordFailure(key);
+            log.error("Ошибка при сжатии файла {}: {}", source.getFileName(), e.getMessage());
+        }
+    }
+
+    private void recordFailure(String key) {
+        failures.incrementAndGet();
+        FailedAttempt failedAttempt = failedKeys.compute(key, (k, previous) -> {
+            int attempts = previous == null ? 1 : previous.attempts() + 1;
+            Duration backoff = retryBackoff.multipliedBy(1L << Math.min(attempts - 1, 16));
+            if (backoff.compareTo(MAX_RETRY_BACKOFF) > 0) {
+                backoff = MAX_RETRY_BACKOFF;
+            }
+            return new FailedAttempt(attempts, System.currentTimeMillis() + backoff.toMillis());
+        });
+        log.info("Повторное сжатие {} не раньше чем через {} мин(попытка {})", key,
+                TimeUnit.MILLISECONDS.toMinutes(failedAttempt.retryAtMillis() - System.currentTimeMillis()), failedAttempt.attempts());
+    }
+
+    /**
+     * Удаляет копии файла, кроме keepKey(null - удалить все)
+     */
+    private void removeArtifacts(Path source, String keepKey) {
+        String sourcePrefix = pathHash(source) + "-";
+        try (Stream<Path> artifactDirectories = listArtifactDirectories()) {
+            artifactDirectories
+                    .filter(artifactDirectory -> artifactDirectory.getFileName().toString().startsWith(sourcePrefix))
+                    .filter(artifactDirectory -> !artifactDirectory.getFileName().toString().equals(keepKey))
+                    .forEach(this::deleteDirectory);
+        }
+    }
+
+    /**
+     * Копии исходников, которых уже нет в каталоге или которые изменились, пока бот был выключен
+     */
+    private void removeOrphanArtifacts() {
+        Set<String> actualKeys = fileCatalog.allFiles().stream()
+                .filter(file -> needsCompression(file.toFile()))
+                .map(this::artifactKey)
+                .collect(Collectors.toSet());
+        try (Stream<Path> artifactDirectories = listArtifactDirectories()) {
+            artifactDirectories
+                    .filter(artifactDirectory -> !actualKeys.contains(artifactDirectory.getFileName().toString()))
+                    .forEach(this::deleteDirectory);
+        }
+    }
+
+    private Stream<Path> listArtifactDirectories() {
+        if (!Files.isDirectory(directory)) {
+            return Stream.empty();
+        }
+        try {
+            return Files.list(directory).filter(Files::isDirectory);
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать директорию сжатых файлов {}: {}", directory, e.getMessage());
+            return Stream.empty();
+        }
+    }
+
+    private void deleteDirectory(Path artifactDirectory) {
+        try (Stream<Path> files = Files.walk(artifactDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            log.info("Удалена устаревшая сжатая копия {}", artifactDirectory.getFileName());
+        } catch (IOException e) {
+            log.warn("Не удалось удалить {}: {}", artifactDirectory, e.getMessage());
+        }
+    }
+
+    private Path artifactPath(Path source) {
+        return directory.resolve(artifactKey(source)).resolve(source.getFileName());
+    }
+
+    private String artifactKey(Path source) {
+        File file = source.toFile();
+        return pathHash(source) + "-" + file.length() + "-" + file.lastModified();
+    }
+
+    private String pathHash(Path source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(source.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long compressedCount = compressed.get();
+        return Map.of(
+                "hits", hits.get(),
+                "misses", misses.get(),
+                "pending", pendingKeys.size(),
+                "settling", settlingFiles.size(),
+                "compressed", compressedCount,
+                "failures", failures.get(),
+                "failedFiles", failedKeys.size(),
+                "skippedRetries", skippedRetries.get(),
+                "avgCompressionMillis", compressedCount == 0 ? 0 : (double) compressionTotalMillis.get() / compressedCount
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compressor.shutdownNow();
+    }
+}
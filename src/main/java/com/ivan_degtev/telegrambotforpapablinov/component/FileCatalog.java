@@ -0,0 +1,224 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+ * Индекс файлов компании в app/files. Строится один раз при старте: нормализованное имя -> путь и
+ * имя без расширения -> файлы с этим именем. Дальше поддерживается в актуальном состоянии через WatchService,
+ * поэтому поиск файла по имени не трогает диск.
+ */
+@Component
+@Slf4j
+public class FileCatalog {
+
+    private final static String PATH_FOR_SAVE_FILES = "app/files";
+
+    private final Path directory = Paths.get(PATH_FOR_SAVE_FILES);
+    private final Map<String, Path> filesByName = new ConcurrentHashMap<>();
+    private final Map<String, Set<Path>> filesByBaseName = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private WatchService watchService;
+
+    /**
+     * Подписчик на изменения каталога. onFileChanged вызывается и для новых, и для изменённых файлов(может прийти
+     * несколько раз подряд, пока файл дописывается), поэтому обработка должна быть идемпотентной
+     */
+    public interface Listener {
+        void onFileChanged(Path file);
+
+        void onFileRemoved(Path file);
+    }
+
+    @PostConstruct
+    public void init() {
+        rebuild();
+        startWatching();
+    }
+
+    /**
+     * Файл по имени с расширением, сравнение без учёта регистра и лишних пробелов
+     */
+    public Optional<Path> find(String fileName) {
+        return Optional.ofNullable(filesByName.get(normalizeFileName(fileName)));
+    }
+
+    /**
+     * Все файлы с таким именем без учёта расширения(например, "Регламент" -> Регламент.docx, Регламент.pdf)
+     */
+    public Set<Path> findByBaseName(String baseName) {
+        return filesByBaseName.getOrDefault(normalizeFileName(baseName), Set.of());
+    }
+
+    /**
+     * Подписывает на изменения каталога. Уже известные файлы подписчик забирает сам через allFiles()
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Collection<Path> allFiles() {
+        return filesByName.values();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int size() {
+        return filesByName.size();
+    }
+
+    /**
+     * Нормализация имени для сравнения: пробелы, неразрывные пробелы, управляющие символы и регистр
+     */
+    public static String normalizeFileName(String fileName) {
+        if (fileName == null) {
+            return "";
+        }
+        return fileName
+                .replace('\u00A0', ' ')
+                .replaceAll("[\\p{Cntrl}]", "")
+                .replaceAll("\\s+", " ")
+                .trim()
+                .toLowerCase(Locale.ROOT);
+    }
+
+    private void rebuild() {
+        Set<Path> previousFiles = new HashSet<>(filesByName.values());
+        filesByName.clear();
+        filesByBaseName.clear();
+        if (!Files.isDirectory(directory)) {
+            log.warn("Директория с файлами {} не найдена, каталог пуст", directory.toAbsolutePath());
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(this::add);
+        } catch (IOException e) {
+            log.error("Ошибка при построении каталога файлов: {}", e.getMessage());
+        }
+        previousFiles.removeAll(filesByName.values());
+        previousFiles.forEach(file -> listeners.forEach(listener -> listener.onFileRemoved(file)));
+        log.info("Каталог файлов построен, файлов: {}", filesByName.size());
+    }
+
+    private void add(Path file) {
+        if (!Files.isRegularFile(file) || file.getFileName().toString().startsWith(".")) {
+            return;
+        }
+        String name = normalizeFileName(file.getFileName().toString());
+        filesByName.put(name, file);
+        filesByBaseName.computeIfAbsent(baseName(name), key -> ConcurrentHashMap.newKeySet()).add(file);
+        notifyListeners(file, false);
+    }
+
+    private void remove(Path file) {
+        String name = normalizeFileName(file.getFileName().toString());
+        if (filesByName.remove(name) == null) {
+            return;
+        }
+        filesByBaseName.computeIfPresent(baseName(name), (key, paths) -> {
+            paths.remove(file);
+            return paths.isEmpty() ? null : paths;
+        });
+        notifyListeners(file, true);
+    }
+
+    private void notifyListeners(Path file, boolean removed) {
+        for (Listener listener : listeners) {
+            try {
+                if (removed) {
+                    listener.onFileRemoved(file);
+                } else {
+                    listener.onFileChanged(file);
+                }
+            } catch (RuntimeException e) {
+                log.error("Ошибка в подписчике каталога файлов на {}: {}", file.getFileName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private String baseName(String normalizedName) {
+        int dot = normalizedName.lastIndexOf('.');
+        return dot > 0 ? normalizedName.substring(0, dot) : normalizedName;
+    }
+
+    private void startWatching() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.error("Не удалось подписаться на изменения {}, каталог не будет обновляться: {}", directory, e.getMessage());
+            return;
+        }
+        Thread watcherThread = new Thread(this::watchLoop, "file-catalog-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void watchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                List<WatchEvent<?>> events = key.pollEvents();
+                for (WatchEvent<?> event : events) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rebuild();
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        remove(file);
+                    } else {
+                        add(file);
+                    }
+                    log.info("Каталог файлов обновлен: {} {}", event.kind().name(), file.getFileName());
+                }
+                if (!key.reset()) {
+                    log.warn("Директория {} больше недоступна для отслеживания", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Нечеткий поиск файлов каталога по имени. Имя делится на номер раздела("1.10.1.") и текст, текст индексируется
+ * триграммами: триграмма -> файлы, в имени которых она есть. Кандидаты набираются только по триграммам запроса,
+ * поэтому поиск не перебирает весь каталог. Схожесть текста - коэффициент Дайса по триграммам, совпадение номера
+ * раздела дает половину оценки. Индекс обновляется вместе с FileCatalog через его подписку на изменения
+ */
+@Component
+@Slf4j
+public class FileNameIndex implements FileCatalog.Listener {
+
+    private final static Pattern NUMBER_PREFIX = Pattern.compile("^(\\d+(?:\\.\\d+)*)\\.?(?=\\s|$)\\s*");
+    private final static Pattern FILE_EXTENSION = Pattern.compile("\\.(?=[a-z0-9]*[a-z])[a-z0-9]{1,5}$");
+    private final static Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final FileCatalog fileCatalog;
+    private final double minScore;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Path, IndexedName> names = new HashMap<>();
+    private final Map<String, Set<Path>> filesByTrigram = new HashMap<>();
+    private final Map<String, Set<Path>> filesByNumberPrefix = new HashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public record Match(Path file, double score) {
+    }
+
+    private record IndexedName(String numberPrefix, Set<String> trigrams) {
+    }
+
+    private record ParsedName(String numberPrefix, String text) {
+    }
+
+    public FileNameIndex(
+            FileCatalog fileCatalog,
+            @Value("${files.name-index.min-score:0.5}") double minScore
+    ) {
+        this.fileCatalog = fileCatalog;
+        this.minScore = minScore;
+    }
+
+    @PostConstruct
+    public void init() {
+        fileCatalog.addListener(this);
+        fileCatalog.allFiles().forEach(this::onFileChanged);
+        log.info("Индекс имён файлов построен, файлов: {}, триграмм: {}", names.size(), filesByTrigram.size());
+    }
+
+    /**
+     * До limit файлов, похожих на имя из запроса, по убыванию оценки. Оценка от 0 до 1, файлы ниже min-score отбрасываются
+     */
+    public List<Match> search(String query, int limit) {
+        long startedAt = System.nanoTime();
+        ParsedName parsedQuery = parse(query);
+        Set<String> queryTrigrams = trigrams(parsedQuery.text());
+        List<Match> matches = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            Map<Path, Integer> sharedTrigrams = new HashMap<>();
+            for (String trigram : queryTrigrams) {
+                for (Path file : filesByTrigram.getOrDefault(trigram, Set.of())) {
+                    sharedTrigrams.merge(file, 1, Integer::sum);
+                }
+            }
+            Set<Path> candidates = new HashSet<>(sharedTrigrams.keySet());
+            if (parsedQuery.numberPrefix() != null) {
+                candidates.addAll(filesByNumberPrefix.getOrDefault(parsedQuery.numberPrefix(), Set.of()));
+            }
+
+            for (Path file : candidates) {
+                IndexedName indexedName = names.get(file);
+                double textScore = queryTrigrams.isEmpty() ? 0
+                        : 2.0 * sharedTrigrams.getOrDefault(file, 0) / (queryTrigrams.size() + indexedName.trigrams().size());
+                double score = parsedQuery.numberPrefix() == null ? textScore
+                        : parsedQuery.text().isEmpty() ? prefixScore(parsedQuery.numberPrefix(), indexedName.numberPrefix())
+                        : 0.5 * prefixScore(parsedQuery.numberPrefix(), indexedName.numberPrefix()) + 0.5 * textScore;
+                if (score >= minScore) {
+                    matches.add(new Match(file, score));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Match> result = matches.stream()
+                .sorted(Comparator.comparingDouble(Match::score).reversed()
+                        .thenComparing(match -> match.file().getFileName().toString()))
+                .limit(limit)
+                .toList();
+        lookups.incrementAndGet();
+        lookupNanos.addAndGet(System.nanoTime() - startedAt);
+        if (result.isEmpty()) {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public void onFileChanged(Path file) {
+        ParsedName parsedName = parse(file.getFileName().toString());
+        IndexedName indexedName = new IndexedName(parsedName.numberPrefix(), trigrams(parsedName.text()));
+        lock.writeLock().lock();
+        try {
+            unindex(file);
+            names.put(file, indexedName);
+            indexedName.trigrams().forEach(trigram ->
+                    filesByTrigram.computeIfAbsent(trigram, key -> new HashSet<>()).add(file));
+            numberPrefixWithParents(indexedName.numberPrefix()).forEach(prefix ->
+                    filesByNumberPrefix.computeIfAbsent(prefix, key -> new HashSet<>()).add(file));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onFileRemoved(Path file) {
+        lock.writeLock().lock();
+        try {
+            unindex(file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(Path file) {
+        IndexedName previous = names.remove(file);
+        if (previous == null) {
+            return;
+        }
+        previous.trigrams().forEach(trigram -> removePosting(filesByTrigram, trigram, file));
+        numberPrefixWithParents(previous.numberPrefix()).forEach(prefix -> removePosting(filesByNumberPrefix, prefix, file));
+    }
+
+    private void removePosting(Map<String, Set<Path>> postings, String key, Path file) {
+        Set<Path> files = postings.get(key);
+        if (files != null) {
+            files.remove(file);
+            if (files.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Номер раздела файла совпал полностью - 1, файл лежит внутри запрошенного раздела("1.10." -> "1.10.1.") - 0.75
+     */
+    private double prefixScore(String queryPrefix, String filePrefix) {
+        if (filePrefix == null) {
+            return 0;
+        }
+        if (filePrefix.equals(queryPrefix)) {
+            return 1;
+        }
+        return filePrefix.startsWith(queryPrefix + ".") ? 0.75 : 0;
+    }
+
+    /**
+     * "1.10.1" -> 1, 1.10, 1.10.1 - чтобы запрос по разделу находил все вложенные документы
+     */
+    private List<String> numberPrefixWithParents(String numberPrefix) {
+        if (numberPrefix == null) {
+            return List.of();
+        }
+        List<String> prefixes = new ArrayList<>();
+        int dot = numberPrefix.indexOf('.');
+        while (dot > 0) {
+            prefixes.add(numberPrefix.substring(0, dot));
+            dot = numberPrefix.indexOf('.', dot + 1);
+        }
+        prefixes.add(numberPrefix);
+        return prefixes;
+    }
+
+    private ParsedName parse(String fileName) {
+        String name = FILE_EXTENSION.matcher(FileCatalog.normalizeFileName(fileName)).replaceFirst("");
+        Matcher matcher = NUMBER_PREFIX.matcher(name);
+        if (matcher.find()) {
+            return new ParsedName(matcher.group(1), name.substring(matcher.end()).trim());
+        }
+        return new ParsedName(null, name);
+    }
+
+    private Set<String> trigrams(String text) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        if (text.isEmpty()) {
+            return trigrams;
+        }
+        String padded = " " + NON_WORD.matcher(text).replaceAll(" ").trim() + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    public Map<String, Object> getStats() {
+        long lookupCount = lookups.get();
+        lock.readLock().lock();
+        try {
+            return Map.of(
+                    "files", names.size(),
+                    "trigrams", filesByTrigram.size(),
+                    "numberPrefixes", filesByNumberPrefix.size(),
+                    "lookups", lookupCount,
+                    "misses", misses.get(),
+                    "avgLookupMicros", lookupCount == 0 ? 0 : lookupNanos.get() / lookupCount / 1000.0
+            );
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.config.HttpClientProperties;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общие http-коннекторы для WebClient внешних апи(openai, telegram, notion). У каждого апстрима один пул соединений
+ * reactor-netty с таймаутами, keep-alive и фоновым удалением простаивающих соединений, поэтому TLS-рукопожатие
+ * не повторяется на каждый запрос. Метрики пулов по хостам собираются здесь же, без micrometer.
+ */
+@Component
+@RequiredArgsConstructor
+public class HttpConnectorRegistry implements ConnectionProvider.MeterRegistrar {
+
+    private final HttpClientProperties httpClientProperties;
+
+    private final Map<String, ConnectionProvider> providers = new ConcurrentHashMap<>();
+    private final Map<String, ReactorClientHttpConnector> connectors = new ConcurrentHashMap<>();
+    private final Map<String, ConnectionPoolMetrics> metricsByPool = new ConcurrentHashMap<>();
+
+    /**
+     * Коннектор для апстрима, создаётся один раз и переиспользуется всеми WebClient этого апстрима
+     */
+    public ReactorClientHttpConnector connector(String upstream) {
+        return connectors.computeIfAbsent(upstream, this::createConnector);
+    }
+
+    private ReactorClientHttpConnector createConnector(String upstream) {
+        HttpClientProperties.Pool pool = httpClientProperties.getPool(upstream);
+        ConnectionProvider connectionProvider = ConnectionProvider.builder(upstream)
+                .maxConnections(pool.getMaxConnections())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(Duration.ofMillis(pool.getPendingAcquireTimeoutMs()))
+                .maxIdleTime(Duration.ofMillis(pool.getMaxIdleTimeMs()))
+                .maxLifeTime(Duration.ofMillis(pool.getMaxLifeTimeMs()))
+                .evictInBackground(Duration.ofMillis(pool.getEvictInBackgroundMs()))
+                .metrics(true, () -> this)
+                .build();
+        providers.put(upstream, connectionProvider);
+
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, pool.getConnectTimeoutMs())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .keepAlive(true)
+                .responseTimeout(Duration.ofMillis(pool.getResponseTimeoutMs()));
+        if (pool.isHttp2()) {
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+        }
+        return new ReactorClientHttpConnector(httpClient);
+    }
+
+    @Override
+    public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+        metricsByPool.put(metricsKey(poolName, id, remoteAddress), metrics);
+    }
+
+    @Override
+    public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+        metricsByPool.remove(metricsKey(poolName, id, remoteAddress));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        metricsByPool.forEach((pool, metrics) -> stats.put(pool, Map.of(
+                "acquired", metrics.acquiredSize(),
+                "allocated", metrics.allocatedSize(),
+                "idle", metrics.idleSize(),
+                "pendingAcquire", metrics.pendingAcquireSize(),
+                "maxAllocated", metrics.maxAllocatedSize(),
+                "maxPendingAcquire", metrics.maxPendingAcquireSize()
+        )));
+        return stats;
+    }
+
+    private String metricsKey(String poolName, String id, SocketAddress remoteAddress) {
+        return poolName + " " + remoteAddress + " " + id;
+    }
+
+    @PreDestroy
+    public void dispose() {
+        providers.values().forEach(ConnectionProvider::dispose);
+    }
+}
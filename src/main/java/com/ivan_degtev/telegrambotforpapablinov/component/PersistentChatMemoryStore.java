@@ -1,43 +1,449 @@
 package com.ivan_degtev.telegrambotforpapablinov.component;
 
+import com.ivan_degtev.telegrambotforpapablinov.mapper.ChatMessageBinaryMapper;
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.serializer.SerializerArrayTuple;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static dev.langchain4j.data.message.ChatMessageDeserializer.messagesFromJson;
-import static dev.langchain4j.data.message.ChatMessageSerializer.messagesToJson;
+import static org.mapdb.Serializer.BYTE_ARRAY;
+import static org.mapdb.Serializer.LONG;
 import static org.mapdb.Serializer.STRING;
 
 /**
  * Создание постоянного хранилица сообщений для памяти ассистента. Для каждого юзера в памяти приложения(DB)
+ * хранится журнал сообщений: ключ (memoryId, порядковый номер), значение - одно сообщение в бинарном виде.
+ * При обновлении окна новые сообщения дописываются в конец, вытесненные удаляются по ключу, остальное не перезаписывается.
+ * Значения лежат вне узлов BTree, поэтому вставка не переписывает соседние сообщения.
+ * Чаты разложены по хэшу memoryId на несколько файлов(ChatMemoryShard) с отображением в память, коммит одного файла
+ * не ждёт остальные. Фоновое обслуживание сбрасывает WAL и возвращает место от удаленных записей компактизацией.
+ * Записи старого формата(вся история одним json в "messages") переносятся в журнал при первом чтении, старый файл
+ * multi-user-chat-memory.db один раз импортируется в шарды при первом запуске.
+ * Окна активных чатов держатся в LRU кэше ограниченного размера, запись идет сквозь кэш сразу в журнал
  */
 @Component
-public class PersistentChatMemoryStore  implements ChatMemoryStore {
+@Slf4j
+public class PersistentChatMemoryStore implements ChatMemoryStore {
 
-    private final DB db = DBMaker.fileDB("multi-user-chat-memory.db").transactionEnable().make();
-    private final Map<String, String> map = db.hashMap("messages", STRING, STRING).createOrOpen();
+    private final static String LEGACY_DB_FILE = "multi-user-chat-memory.db";
+    private final static String LEGACY_MAP_NAME = "messages";
+    private final static String MESSAGE_LOG_NAME = "message-log";
+    private final static int LOCK_STRIPES = 64;
+
+    private final ChatMessageBinaryMapper chatMessageBinaryMapper;
+    private final Object[] memoryLocks = new Object[LOCK_STRIPES];
+    private final ChatMemoryShard[] shards;
+
+    /**
+     * Окна сообщений последних активных чатов уже в виде ChatMessage, LinkedHashMap в порядке обращений
+     */
+    private final LinkedHashMap<String, CachedWindow> windowCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long cacheMaxWeight;
+    private long cachedWeight;
+
+    private final ScheduledExecutorService maintenance;
+    private final long compactionMinRemoved;
+
+    private final AtomicLong appendedMessages = new AtomicLong();
+    private final AtomicLong removedMessages = new AtomicLong();
+    private final AtomicLong keptMessages = new AtomicLong();
+    private final AtomicLong appendedBytes = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong lastCompactionMillis = new AtomicLong();
+    private final AtomicLong lastCompactionFreedBytes = new AtomicLong();
+    private final AtomicLong checkpoints = new AtomicLong();
+    private final AtomicLong migratedMemories = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final long startupMillis;
+
+    public PersistentChatMemoryStore(
+            ChatMessageBinaryMapper chatMessageBinaryMapper,
+            @Value("${chat-memory.directory:app/chat-memory}") String directory,
+            @Value("${chat-memory.shards:4}") int shardCount,
+            @Value("${chat-memory.mmap:true}") boolean mmap,
+            @Value("${chat-memory.maintenance.interval-minutes:60}") long maintenanceIntervalMinutes,
+            @Value("${chat-memory.compaction.min-removed-messages:1000}") long compactionMinRemoved,
+            @Value("${chat-memory.cache.max-weight-mb:64}") long cacheMaxWeightMb
+    ) throws IOException {
+        this.chatMessageBinaryMapper = chatMessageBinaryMapper;
+        this.cacheMaxWeight = cacheMaxWeightMb * 1024 * 1024;
+        this.compactionMinRemoved = compactionMinRemoved;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            memoryLocks[i] = new Object();
+        }
+
+        long startNanos = System.nanoTime();
+        Path shardDirectory = Path.of(directory);
+        Files.createDirectories(shardDirectory);
+        this.shards = new ChatMemoryShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ChatMemoryShard(shardDirectory.resolve("chat-memory-" + i + ".db"), mmap, shardCount);
+        }
+        importLegacyFile(Path.of(LEGACY_DB_FILE));
+        this.startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        log.info("Память чатов открыта за {} мс: {} шардов в {}", startupMillis, shardCount, shardDirectory);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-memory-maintenance");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.maintenance.scheduleWithFixedDelay(this::runMaintenance,
+                maintenanceIntervalMinutes, maintenanceIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Однократный перенос старого общего файла в шарды. Файл не удаляется, факт импорта отмечается в первом шарде
+     */
+    private void importLegacyFile(Path legacyFile) {
+        if (!Files.exists(legacyFile)) {
+            return;
+        }
+        if (shards[0].isLegacyFileImported()) {
+            return;
+        }
+
+        DB legacyDb = DBMaker.fileDB(legacyFile.toFile()).transactionEnable().make();
+        try {
+            long messages = 0;
+            if (legacyDb.exists(MESSAGE_LOG_NAME)) {
+                BTreeMap<Object[], byte[]> legacyLog = legacyDb.treeMap(MESSAGE_LOG_NAME)
+                        .keySerializer(new SerializerArrayTuple(STRING, LONG))
+                        .valueSerializer(BYTE_ARRAY)
+                        .open();
+                for (Map.Entry<Object[], byte[]> entry : legacyLog.entrySet()) {
+                    shardFor((String) entry.getKey()[0]).messageLog().put(entry.getKey(), entry.getValue());
+                    messages++;
+                }
+            }
+            if (legacyDb.exists(LEGACY_MAP_NAME)) {
+                for (Map.Entry<String, String> entry : legacyDb.hashMap(LEGACY_MAP_NAME, STRING, STRING).open().entrySet()) {
+                    shardFor(entry.getKey()).legacyMap().put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (ChatMemoryShard shard : shards) {
+                shard.commit();
+            }
+            shards[0].markLegacyFileImported();
+            log.info("Старый файл {} импортирован в шарды памяти чатов: {} сообщений", legacyFile, messages);
+        } finally {
+            legacyDb.close();
+        }
+    }
 
     @Override
     public List<ChatMessage> getMessages(Object memoryId) {
-        String json = map.get((String) memoryId);
-        return messagesFromJson(json);
+        String id = (String) memoryId;
+        CachedWindow cached = cachedWindow(id);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return cached.messages();
+        }
+        ChatMemoryShard shard = shardFor(id);
+        shard.readLock().lock();
+        try {
+            synchronized (lockFor(id)) {
+                return loadWindow(shard, id).messages();
+            }
+        } finally {
+            shard.readLock().unlock();
+        }
     }
 
+    /**
+     * Окно из MessageWindowChatMemory - это старое окно без вытесненных сообщений плюс новые в конце. Старые записи
+     * проходятся по порядку: совпавшая с очередным сообщением окна остаётся на месте, не совпавшая удаляется,
+     * всё, что осталось в окне после прохода, дописывается в конец журнала. Старое окно берется из кэша,
+     * новое после коммита кладется в кэш
+     */
     @Override
     public void updateMessages(Object memoryId, List<ChatMessage> messages) {
-        String json = messagesToJson(messages);
-        map.put((String) memoryId, json);
-        db.commit();
+        String id = (String) memoryId;
+        ChatMemoryShard shard = shardFor(id);
+        shard.readLock().lock();
+        try {
+            synchronized (lockFor(id)) {
+                appendWindow(shard, id, messages);
+            }
+        } catch (RuntimeException e) {
+            invalidateCachedWindow(id);
+            throw e;
+        } finally {
+            shard.readLock().unlock();
+        }
+    }
+
+    private void appendWindow(ChatMemoryShard shard, String id, List<ChatMessage> messages) {
+        CachedWindow oldWindow = cachedWindow(id);
+        if (oldWindow == null) {
+            oldWindow = loadWindow(shard, id);
+        }
+
+        List<Object[]> newKeys = new ArrayList<>(messages.size());
+        int matched = 0;
+        int removed = 0;
+        for (int i = 0; i < oldWindow.keys().size(); i++) {
+            if (matched < messages.size() && oldWindow.messages().get(i).equals(messages.get(matched))) {
+                newKeys.add(oldWindow.keys().get(i));
+                matched++;
+            } else {
+                shard.messageLog().remove(oldWindow.keys().get(i));
+                removed++;
+            }
+        }
+
+        long nextSequence = oldWindow.keys().isEmpty() ? 0 : (Long) oldWindow.keys().get(oldWindow.keys().size() - 1)[1] + 1;
+        for (ChatMessage message : messages.subList(matched, messages.size())) {
+            byte[] bytes = chatMessageBinaryMapper.toBytes(message);
+            Object[] key = new Object[]{id, nextSequence++};
+            shard.messageLog().put(key, bytes);
+            newKeys.add(key);
+            appendedBytes.addAndGet(bytes.length);
+        }
+        shard.commit();
+        cacheWindow(id, new CachedWindow(newKeys, List.copyOf(messages)));
+
+        keptMessages.addAndGet(matched);
+        appendedMessages.addAndGet(messages.size() - matched);
+        removedMessages.addAndGet(removed);
+        shard.recordRemoved(removed);
     }
 
     @Override
     public void deleteMessages(Object memoryId) {
-        map.remove((String) memoryId);
-        db.commit();
+        String id = (String) memoryId;
+        ChatMemoryShard shard = shardFor(id);
+        shard.readLock().lock();
+        try {
+            synchronized (lockFor(id)) {
+                invalidateCachedWindow(id);
+                int removed = windowKeys(shard, id).size();
+                shard.messageLog().prefixSubMap(new Object[]{id}).clear();
+                shard.legacyMap().remove(id);
+                shard.commit();
+                removedMessages.addAndGet(removed);
+                shard.recordRemoved(removed);
+            }
+        } finally {
+            shard.readLock().unlock();
+        }
+    }
+
+    /**
+     * Чтение окна из журнала при промахе кэша, вызывается под read lock шарда и блокировкой полосы memoryId
+     */
+    private CachedWindow loadWindow(ChatMemoryShard shard, String id) {
+        CachedWindow cached = cachedWindow(id);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        cacheMisses.incrementAndGet();
+        List<Object[]> keys = windowKeys(shard, id);
+        if (keys.isEmpty() && shard.legacyMap().containsKey(id)) {
+            migrateLegacy(shard, id);
+            keys = windowKeys(shard, id);
+        }
+        CachedWindow window = new CachedWindow(keys, decodeWindow(shard, keys));
+        cacheWindow(id, window);
+        return window;
+    }
+
+    private CachedWindow cachedWindow(String id) {
+        synchronized (windowCache) {
+            return windowCache.get(id);
+        }
+    }
+
+    /**
+     * Вес окна - примерный размер текста сообщений в байтах. Самые давно не использованные окна вытесняются,
+     * пока суммарный вес больше лимита
+     */
+    private void cacheWindow(String id, CachedWindow window) {
+        synchronized (windowCache) {
+            CachedWindow previous = windowCache.put(id, window);
+            cachedWeight += window.weight() - (previous == null ? 0 : previous.weight());
+            Iterator<Map.Entry<String, CachedWindow>> eldest = windowCache.entrySet().iterator();
+            while (cachedWeight > cacheMaxWeight && windowCache.size() > 1 && eldest.hasNext()) {
+                Map.Entry<String, CachedWindow> entry = eldest.next();
+                if (entry.getKey().equals(id)) {
+                    continue;
+                }
+                cachedWeight -= entry.getValue().weight();
+                eldest.remove();
+                cacheEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void invalidateCachedWindow(String id) {
+        synchronized (windowCache) {
+            CachedWindow removed = windowCache.remove(id);
+            if (removed != null) {
+                cachedWeight -= removed.weight();
+            }
+        }
+    }
+
+    /**
+     * Окно целиком декодируется сразу: оно всё равно кладется в кэш и целиком отдаётся ChatMemory
+     */
+    private List<ChatMessage> decodeWindow(ChatMemoryShard shard, List<Object[]> keys) {
+        List<ChatMessage> messages = new ArrayList<>(keys.size());
+        for (Object[] key : keys) {
+            byte[] bytes = shard.messageLog().get(key);
+            if (bytes == null) {
+                throw new IllegalStateException("Сообщение удалено из журнала во время чтения окна");
+            }
+            messages.add(chatMessageBinaryMapper.fromBytes(bytes));
+        }
+        return List.copyOf(messages);
+    }
+
+    private List<Object[]> windowKeys(ChatMemoryShard shard, String id) {
+        return new ArrayList<>(shard.messageLog().prefixSubMap(new Object[]{id}).keySet());
+    }
+
+    private void migrateLegacy(ChatMemoryShard shard, String id) {
+        List<ChatMessage> messages = messagesFromJson(shard.legacyMap().get(id));
+        long sequence = 0;
+        for (ChatMessage message : messages) {
+            shard.messageLog().put(new Object[]{id, sequence++}, chatMessageBinaryMapper.toBytes(message));
+        }
+        shard.legacyMap().remove(id);
+        shard.commit();
+        migratedMemories.incrementAndGet();
+        log.info("История {} перенесена в журнал сообщений: {} сообщений", id, messages.size());
+    }
+
+    /**
+     * Обслуживание шардов по очереди, чтобы write lock держался только на одном файле: сброс WAL для всех,
+     * компактизация - если с прошлого раза в шарде удалено достаточно сообщений
+     */
+    private void runMaintenance() {
+        for (ChatMemoryShard shard : shards) {
+            try {
+                shard.checkpoint();
+                checkpoints.incrementAndGet();
+                if (shard.removedSinceCompaction() >= compactionMinRemoved) {
+                    long startNanos = System.nanoTime();
+                    long freedBytes = shard.compact();
+                    compactions.incrementAndGet();
+                    lastCompactionFreedBytes.set(freedBytes);
+                    lastCompactionMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    log.info("Компактизация шарда памяти чатов заняла {} мс, освобождено {} байт",
+                            lastCompactionMillis.get(), freedBytes);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ошибка обслуживания шарда памяти чатов: {}", e.getMessage());
+            }
+        }
+    }
+
+    private ChatMemoryShard shardFor(String id) {
+        return shards[Math.floorMod(id.hashCode(), shards.length)];
+    }
+
+    private Object lockFor(String id) {
+        return memoryLocks[Math.floorMod(id.hashCode(), LOCK_STRIPES)];
+    }
+
+    @PreDestroy
+    public void close() {
+        maintenance.shutdownNow();
+        for (ChatMemoryShard shard : shards) {
+            shard.close();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (windowCache) {
+            stats.put("cachedWindows", windowCache.size());
+            stats.put("cachedWeightBytes", cachedWeight);
+        }
+        stats.put("cacheHits", cacheHits.get());
+        stats.put("cacheMisses", cacheMisses.get());
+        stats.put("cacheEvictions", cacheEvictions.get());
+        stats.put("shards", shards.length);
+        stats.put("startupMs", startupMillis);
+        stats.put("fileSizeBytes", Arrays.stream(shards).mapToLong(ChatMemoryShard::fileSize).sum());
+        stats.put("walSizeBytes", Arrays.stream(shards).mapToLong(ChatMemoryShard::walSize).sum());
+        stats.put("checkpoints", checkpoints.get());
+        stats.putAll(Map.of(
+                "appendedMessages", appendedMessages.get(),
+                "keptMessages", keptMessages.get(),
+                "removedMessages", removedMessages.get(),
+                "appendedBytes", appendedBytes.get(),
+                "removedSinceCompaction", Arrays.stream(shards).mapToLong(ChatMemoryShard::removedSinceCompaction).sum(),
+                "compactions", compactions.get(),
+                "lastCompactionMs", lastCompactionMillis.get(),
+                "lastCompactionFreedBytes", lastCompactionFreedBytes.get(),
+                "migratedMemories", migratedMemories.get()
+        ));
+        return stats;
+    }
+
+    /**
+     * Окно сообщений вместе с ключами журнала, по ключам следующее обновление удаляет вытесненные записи без чтения диска
+     */
+    private record CachedWindow(List<Object[]> keys, List<ChatMessage> messages, long weight) {
+
+        private final static int MESSAGE_OVERHEAD_BYTES = 64;
+
+        private CachedWindow(List<Object[]> keys, List<ChatMessage> messages) {
+            this(keys, messages, weightOf(messages));
+        }
+
+        private static long weightOf(List<ChatMessage> messages) {
+            long weight = 0;
+            for (ChatMessage message : messages) {
+                weight += MESSAGE_OVERHEAD_BYTES + 2L * textLength(message);
+            }
+            return weight;
+        }
+
+        private static int textLength(ChatMessage message) {
+            if (message instanceof SystemMessage systemMessage) {
+                return systemMessage.text().length();
+            } else if (message instanceof UserMessage userMessage) {
+                return userMessage.hasSingleText() ? userMessage.singleText().length() : userMessage.toString().length();
+            } else if (message instanceof AiMessage aiMessage) {
+                return aiMessage.text() != null && !aiMessage.hasToolExecutionRequests()
+                        ? aiMessage.text().length()
+                        : aiMessage.toString().length();
+            } else if (message instanceof ToolExecutionResultMessage resultMessage) {
+                return resultMessage.text().length();
+            }
+            return message.toString().length();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Постепенная доставка ответа ллм в телеграм. Сначала отправляется заглушка, потом она редактируется по мере прихода
+ * кусков ответа из стрима. Куски склеиваются и отправляются не чаще раза в edit-interval-ms, чтобы не упираться
+ * в лимиты телеграма на editMessageText.
+ */
+@Component
+@Slf4j
+public class ProgressiveAnswerSender {
+
+    private final TelegramWebhookConfiguration telegramWebhookConfiguration;
+    private final boolean enabled;
+    private final Duration editInterval;
+
+    private final static String PLACEHOLDER_MESSAGE = "Готовлю ответ...";
+    private final static String ERROR_MESSAGE = "Не удалось получить ответ от ассистента, попробуйте повторить вопрос позже.";
+    private final static String INTERRUPTED_NOTICE = "\n\n(ответ прервался из-за ошибки, попробуйте повторить вопрос позже)";
+    private final static int TELEGRAM_MESSAGE_LIMIT = 4096;
+    private final static Pattern MARKDOWN_CHARS = Pattern.compile("[*_`\\[]");
+
+    private final AtomicLong answersDelivered = new AtomicLong();
+    private final AtomicLong firstTokenCount = new AtomicLong();
+    private final AtomicLong firstTokenTotalMillis = new AtomicLong();
+    private final AtomicLong lastFirstTokenMillis = new AtomicLong();
+    private final AtomicLong editsSent = new AtomicLong();
+    private final AtomicLong answersInterrupted = new AtomicLong();
+    private final AtomicLong finalEditsSkipped = new AtomicLong();
+
+    public ProgressiveAnswerSender(
+            TelegramWebhookConfiguration telegramWebhookConfiguration,
+            @Value("${telegram.delivery.mode:progressive}") String deliveryMode,
+            @Value("${telegram.delivery.edit-interval-ms:1200}") long editIntervalMs
+    ) {
+        this.telegramWebhookConfiguration = telegramWebhookConfiguration;
+        this.enabled = "progressive".equals(deliveryMode);
+        this.editInterval = Duration.ofMillis(editIntervalMs);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Отправляет заглушку и дописывает её по мере прихода кусков ответа. Блокирует вызывающий поток до конца стрима
+     * @param deltas - куски текста ответа в порядке генерации
+     * @return полный текст доставленного ответа или null, если ответ получить не удалось или стрим оборвался -
+     * оборванный ответ показывается пользователю с пометкой, но вызывающий не должен его кэшировать
+     */
+    public String deliver(String chatId, Long replyToMessageId, Flux<String> deltas) {
+        long startNanos = System.nanoTime();
+        Integer messageId = telegramWebhookConfiguration.sendPlaceholderMessage(chatId, PLACEHOLDER_MESSAGE, replyToMessageId);
+
+        if (messageId == null) {
+            String answer;
+            try {
+                answer = deltas.reduce(new StringBuilder(), StringBuilder::append).map(StringBuilder::toString).block();
+            } catch (RuntimeException e) {
+                log.error("Ошибка при получении стрима ответа для чата {}: {}", chatId, e.getMessage());
+                answer = null;
+            }
+            telegramWebhookConfiguration.sendResponseMessage(chatId, answer == null ? ERROR_MESSAGE : answer, replyToMessageId);
+            return answer;
+        }
+
+        // куски дописываются в потоке стрима, а читаются в потоке правок, поэтому доступ к answer под его монитором.
+        // По стриму идёт только длина, текст копируется один раз на правку и не длиннее лимита телеграма
+        StringBuilder answer = new StringBuilder();
+        AtomicReference<String> lastShown = new AtomicReference<>(PLACEHOLDER_MESSAGE);
+        AtomicBoolean firstTokenShown = new AtomicBoolean();
+
+        try {
+            deltas
+                    .map(delta -> {
+                        synchronized (answer) {
+                            return answer.append(delta).length();
+                        }
+                    })
+                    .sample(editInterval)
+                    .onBackpressureLatest()
+                    .publishOn(Schedulers.boundedElastic(), 1)
+                    .doOnNext(length -> {
+                        String shown;
+                        synchronized (answer) {
+                            shown = answer.substring(0, Math.min(length, TELEGRAM_MESSAGE_LIMIT));
+                        }
+                        if (shown.isBlank() || shown.equals(lastShown.get())) {
+                            return;
+                        }
+                        if (telegramWebhookConfiguration.editMessageText(chatId, messageId, shown, false)) {
+                            editsSent.incrementAndGet();
+                            lastShown.set(shown);
+                            if (firstTokenShown.compareAndSet(false, true)) {
+                                recordFirstToken(startNanos);
+                            }
+                        }
+                    })
+                    .blockLast();
+        } catch (RuntimeException e) {
+            log.error("Ошибка при получении стрима ответа для чата {}: {}", chatId, e.getMessage());
+            if (answer.isEmpty()) {
+                telegramWebhookConfiguration.editMessageText(chatId, messageId, ERROR_MESSAGE, false);
+                return null;
+            }
+            sendFinalAnswer(chatId, messageId, replyToMessageId, answer + INTERRUPTED_NOTICE, lastShown.get());
+            answersInterrupted.incrementAndGet();
+            return null;
+        }
+
+        sendFinalAnswer(chatId, messageId, replyToMessageId, answer.toString(), lastShown.get());
+        answersDelivered.incrementAndGet();
+        return answer.toString();
+    }
+
+    /**
+     * Финальная версия ответа отправляется с markdown, если разметка невалидна - без неё. Если в ответе нет разметки
+     * и он уже показан последней правкой, финальная правка не нужна. Всё, что не влезло в лимит
+     * телеграма, уходит отдельными сообщениями
+     */
+    private void sendFinalAnswer(String chatId, Integer messageId, Long replyToMessageId, String answer, String lastShown) {
+        if (answer.isBlank()) {
+            telegramWebhookConfiguration.editMessageText(chatId, messageId, ERROR_MESSAGE, false);
+            return;
+        }
+        String head = truncate(answer);
+        if (head.equals(lastShown) && !MARKDOWN_CHARS.matcher(head).find()) {
+            finalEditsSkipped.incrementAndGet();
+        } else if (!telegramWebhookConfiguration.editMessageText(chatId, messageId, head, true)) {
+            telegramWebhookConfiguration.editMessageText(chatId, messageId, head, false);
+        }
+        for (int offset = head.length(); offset < answer.length(); offset += TELEGRAM_MESSAGE_LIMIT) {
+            String tail = answer.substring(offset, Math.min(answer.length(), offset + TELEGRAM_MESSAGE_LIMIT));
+            telegramWebhookConfiguration.sendResponseMessage(chatId, tail, replyToMessageId);
+        }
+    }
+
+    private String truncate(String text) {
+        return text.length() > TELEGRAM_MESSAGE_LIMIT ? text.substring(0, TELEGRAM_MESSAGE_LIMIT) : text;
+    }
+
+    private void recordFirstToken(long startNanos) {
+        long millis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+        lastFirstTokenMillis.set(millis);
+        firstTokenTotalMillis.addAndGet(millis);
+        firstTokenCount.incrementAndGet();
+        log.info("Первый кусок ответа показан через {} мс", millis);
+    }
+
+    public Map<String, Object> getStats() {
+        long count = firstTokenCount.get();
+        return Map.of(
+                "enabled", enabled,
+                "answersDelivered", answersDelivered.get(),
+                "editsSent", editsSent.get(),
+                "answersInterrupted", answersInterrupted.get(),
+                "finalEditsSkipped", finalEditsSkipped.get(),
+                "lastTimeToFirstTokenMs", lastFirstTokenMillis.get(),
+                "avgTimeToFirstTokenMs", count == 0 ? 0 : firstTokenTotalMillis.get() / count
+        );
+    }
+}
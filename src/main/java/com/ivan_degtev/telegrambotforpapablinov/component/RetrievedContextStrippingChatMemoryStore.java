@@ -0,0 +1,41 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Хранилище для MessageWindowChatMemory: фрагменты документов остаются только в последнем сообщении окна, из более
+ * ранних вопросов они убираются при сохранении. Иначе каждый вопрос в истории держит ~1.3 тыс. токенов фрагментов
+ * и окно из max-messages сообщений перестает помещаться в контекст модели
+ */
+public class RetrievedContextStrippingChatMemoryStore implements ChatMemoryStore {
+
+    private final ChatMemoryStore delegate;
+
+    public RetrievedContextStrippingChatMemoryStore(ChatMemoryStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<ChatMessage> getMessages(Object memoryId) {
+        return delegate.getMessages(memoryId);
+    }
+
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        List<ChatMessage> stripped = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            stripped.add(i == messages.size() - 1 ? messages.get(i) : DocumentContentRetriever.withoutRetrievedContext(messages.get(i)));
+        }
+        delegate.updateMessages(memoryId, stripped);
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        delegate.deleteMessages(memoryId);
+    }
+}
@@ -0,0 +1,294 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.ChatHistorySummarizer;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Окно памяти ассистента, ограниченное бюджетом токенов(считаются токенизатором OpenAI). При переполнении самые старые
+ * реплики вытесняются до target-ratio бюджета и сворачиваются в сводку - отдельное системное сообщение сразу после
+ * инструкции. Сводка хранится в том же хранилище, что и окно, и учитывается в бюджете.
+ * Вытеснение синхронное и дешевое, а сводку модель строит в фоне(ChatHistorySummarizer.submitFold) - запрос
+ * пользователя её не ждёт, до готовности в окне остаётся прежняя сводка. Вытесненное за время построения сводки
+ * копится и сворачивается следующим заходом. Если окно очистили, пока сводка строилась, она отбрасывается.
+ * Вызов инструмента вытесняется вместе со своими результатами, последнее добавленное сообщение не вытесняется.
+ * Фрагменты документов, подставленные в вопрос(DocumentContentRetriever), нужны только для ответа на него -
+ * в бюджете окна они не учитываются, а со следующим сообщением убираются из окна
+ */
+@Slf4j
+public class SummarizingTokenWindowChatMemory implements ChatMemory {
+
+    private final static String SUMMARY_PREFIX = "Краткое содержание предыдущей части разговора:\n";
+    private final static int LOCK_STRIPES = 64;
+    /**
+     * Провайдер памяти создаёт новый объект на каждый вызов, поэтому блокировка общая для всех окон одного memoryId
+     */
+    private final static Object[] MEMORY_LOCKS = new Object[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            MEMORY_LOCKS[i] = new Object();
+        }
+    }
+
+    private final Object id;
+    private final int maxTokens;
+    private final int targetTokens;
+    private final int summaryMaxTokens;
+    private final Tokenizer tokenizer;
+    private final ChatMemoryStore store;
+    private final ChatHistorySummarizer summarizer;
+    private final Object lock;
+
+    /**
+     * Вытесненные, но ещё не свернутые сообщения, доступ под lock
+     */
+    private final List<ChatMessage> pendingEvicted = new ArrayList<>();
+    private int pendingEvictedTokens;
+    private long pendingSinceNanos;
+    /**
+     * Самое старое сообщение, оставшееся в окне после последнего вытеснения
+     */
+    private ChatMessage pendingAnchor;
+    private boolean foldRunning;
+
+    /**
+     * @param summarizer null - вытесненные сообщения просто отбрасываются, как в TokenWindowChatMemory
+     */
+    public SummarizingTokenWindowChatMemory(
+            Object id,
+            int maxTokens,
+            double targetRatio,
+            int summaryMaxTokens,
+            Tokenizer tokenizer,
+            ChatMemoryStore store,
+            ChatHistorySummarizer summarizer
+    ) {
+        this.id = id;
+        this.maxTokens = maxTokens;
+        this.targetTokens = summarizer == null ? maxTokens : (int) (maxTokens * targetRatio);
+        this.summaryMaxTokens = summarizer == null ? 0 : summaryMaxTokens;
+        this.tokenizer = tokenizer;
+        this.store = store;
+        this.summarizer = summarizer;
+        this.lock = MEMORY_LOCKS[Math.floorMod(id.hashCode(), LOCK_STRIPES)];
+    }
+
+    @Override
+    public Object id() {
+        return id;
+    }
+
+    @Override
+    public void add(ChatMessage message) {
+        synchronized (lock) {
+            addLocked(message);
+            if (!foldRunning && !pendingEvicted.isEmpty()) {
+                foldRunning = true;
+                summarizer.submitFold(this::fold);
+            }
+        }
+    }
+
+    private void addLocked(ChatMessage message) {
+        List<ChatMessage> messages = new ArrayList<>(store.getMessages(id));
+        if (message instanceof SystemMessage && !isSummary(message)) {
+            int instructionIndex = instructionIndex(messages);
+            if (instructionIndex >= 0) {
+                if (messages.get(instructionIndex).equals(message)) {
+                    return;
+                }
+                messages.remove(instructionIndex);
+            }
+            messages.add(0, message);
+        } else {
+            int last = messages.size() - 1;
+            if (last >= 0) {
+                messages.set(last, DocumentContentRetriever.withoutRetrievedContext(messages.get(last)));
+            }
+            messages.add(message);
+        }
+        if (tokenizer.estimateTokenCountInMessages(withoutRetrievedContext(messages)) > maxTokens) {
+            shrink(messages);
+        }
+        store.updateMessages(id, messages);
+    }
+
+    @Override
+    public List<ChatMessage> messages() {
+        return store.getMessages(id);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (lock) {
+            pendingEvicted.clear();
+            pendingEvictedTokens = 0;
+            store.deleteMessages(id);
+        }
+    }
+
+    /**
+     * Вытесняет старые реплики, пока окно вместе с будущей сводкой не уложится в targetTokens. Текущая сводка остаётся
+     * после инструкции, пока её не заменит новая, вытесненное копится в pendingEvicted
+     */
+    private void shrink(List<ChatMessage> messages) {
+        // MessageWindowChatMemory дописывал инструкцию в конец окна, вытеснение идёт только после неё и сводки
+        int instructionIndex = instructionIndex(messages);
+        if (instructionIndex > 0) {
+            messages.add(0, messages.remove(instructionIndex));
+        }
+        int firstEvictable = instructionIndex >= 0 ? 1 : 0;
+        int summaryIndex = summaryIndex(messages);
+        if (summaryIndex >= 0) {
+            messages.add(firstEvictable, messages.remove(summaryIndex));
+            firstEvictable++;
+        }
+
+        List<ChatMessage> budgeted = withoutRetrievedContext(messages);
+        int[] tokens = new int[messages.size()];
+        int total = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            tokens[i] = tokenizer.estimateTokenCountInMessage(budgeted.get(i));
+            total += tokens[i];
+        }
+        if (summaryIndex >= 0 && summarizer != null) {
+            // текущая сводка будет заменена новой, место под неё - summaryMaxTokens
+            total -= tokens[firstEvictable - 1];
+        }
+
+        int evictEnd = firstEvictable;
+        int evictedTokens = 0;
+        while (total + summaryMaxTokens > targetTokens && evictEnd < messages.size() - 1) {
+            ChatMessage evicted = messages.get(evictEnd);
+            total -= tokens[evictEnd];
+            evictedTokens += tokens[evictEnd];
+            evictEnd++;
+            if (evicted instanceof AiMessage aiMessage && aiMessage.hasToolExecutionRequests()) {
+                while (evictEnd < messages.size() - 1 && messages.get(evictEnd) instanceof ToolExecutionResultMessage) {
+                    total -= tokens[evictEnd];
+                    evictedTokens += tokens[evictEnd];
+                    evictEnd++;
+                }
+            }
+        }
+        // результат инструмента без своего вызова модель не принимает
+        while (evictEnd < messages.size() - 1 && messages.get(evictEnd) instanceof ToolExecutionResultMessage) {
+            evictedTokens += tokens[evictEnd];
+            evictEnd++;
+        }
+
+        List<ChatMessage> evicted = new ArrayList<>(messages.subList(firstEvictable, evictEnd));
+        messages.subList(firstEvictable, evictEnd).clear();
+        log.debug("Окно памяти {} переполнено: вытеснено {} сообщений, {} токенов", id, evicted.size(), evictedTokens);
+
+        if (summarizer != null && !evicted.isEmpty()) {
+            if (pendingEvicted.isEmpty()) {
+                pendingSinceNanos = System.nanoTime();
+            }
+            pendingEvicted.addAll(evicted);
+            pendingEvictedTokens += evictedTokens;
+            // последний вопрос ещё с фрагментами, в окне он останется без них
+            pendingAnchor = DocumentContentRetriever.withoutRetrievedContext(messages.get(firstEvictable));
+        }
+    }
+
+    /**
+     * Сворачивание в потоке ChatHistorySummarizer. Запрос к модели идёт без блокировки окна. Сводка записывается,
+     * только если самое старое сообщение, оставшееся после вытеснения, всё ещё в окне или вытеснено после старта -
+     * иначе окно очистили(в том числе через другой объект окна того же memoryId)
+     */
+    private void fold() {
+        List<ChatMessage> evicted;
+        int evictedTokens;
+        long sinceNanos;
+        String previousSummary;
+        ChatMessage anchor;
+        synchronized (lock) {
+            evicted = new ArrayList<>(pendingEvicted);
+            evictedTokens = pendingEvictedTokens;
+            sinceNanos = pendingSinceNanos;
+            pendingEvicted.clear();
+            pendingEvictedTokens = 0;
+            anchor = pendingAnchor;
+            List<ChatMessage> messages = store.getMessages(id);
+            int summaryIndex = summaryIndex(messages);
+            previousSummary = summaryIndex >= 0 ? ((SystemMessage) messages.get(summaryIndex)).text().substring(SUMMARY_PREFIX.length()) : null;
+        }
+
+        boolean applied = false;
+        try {
+            Optional<String> summary = summarizer.summarize(previousSummary, evicted, evictedTokens);
+            synchronized (lock) {
+                List<ChatMessage> messages = new ArrayList<>(store.getMessages(id));
+                boolean anchorKept = withoutRetrievedContext(messages).contains(anchor) || pendingEvicted.contains(anchor);
+                if (summary.isPresent() && anchorKept) {
+                    SystemMessage summaryMessage = SystemMessage.from(SUMMARY_PREFIX + summary.get());
+                    int summaryIndex = summaryIndex(messages);
+                    if (summaryIndex >= 0) {
+                        messages.set(summaryIndex, summaryMessage);
+                    } else {
+                        messages.add(instructionIndex(messages) + 1, summaryMessage);
+                    }
+                    store.updateMessages(id, messages);
+                    applied = true;
+                }
+            }
+        } finally {
+            summarizer.recordFold(System.nanoTime() - sinceNanos, applied);
+            synchronized (lock) {
+                if (pendingEvicted.isEmpty()) {
+                    foldRunning = false;
+                } else {
+                    summarizer.submitFold(this::fold);
+                }
+            }
+        }
+    }
+
+    /**
+     * Окно для подсчёта бюджета: в последнем вопросе ещё есть фрагменты документов, но они уходят только в текущий запрос
+     */
+    private static List<ChatMessage> withoutRetrievedContext(List<ChatMessage> messages) {
+        if (messages.isEmpty()) {
+            return messages;
+        }
+        List<ChatMessage> budgeted = new ArrayList<>(messages);
+        int last = budgeted.size() - 1;
+        budgeted.set(last, DocumentContentRetriever.withoutRetrievedContext(budgeted.get(last)));
+        return budgeted;
+    }
+
+    private static boolean isSummary(ChatMessage message) {
+        return message instanceof SystemMessage systemMessage && systemMessage.text().startsWith(SUMMARY_PREFIX);
+    }
+
+    private static int instructionIndex(List<ChatMessage> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i) instanceof SystemMessage && !isSummary(messages.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int summaryIndex(List<ChatMessage> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (isSummary(messages.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
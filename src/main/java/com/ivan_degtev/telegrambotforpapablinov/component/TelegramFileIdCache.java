@@ -0,0 +1,142 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.impl.RedisServiceImpl;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш file_id телеграма для отправленных документов. После первой загрузки файла телеграм возвращает file_id, по
+ * которому тот же файл можно отправить повторно без передачи содержимого. В редисе хранится путь -> sha-256 содержимого
+ * и file_id, file_id используется, только если хэш совпадает с текущим содержимым файла. Хэш считается один раз для
+ * каждой пары размер/дата изменения и сбрасывается по событиям FileCatalog
+ */
+@Component
+@Slf4j
+public class TelegramFileIdCache implements FileCatalog.Listener {
+
+    private final static String VALUE_SEPARATOR = ":";
+
+    private final RedisServiceImpl redisService;
+    private final FileCatalog fileCatalog;
+
+    private final Map<String, ContentHash> contentHashes = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private record ContentHash(long size, long modified, String sha256) {
+    }
+
+    public TelegramFileIdCache(RedisServiceImpl redisService, FileCatalog fileCatalog) {
+        this.redisService = redisService;
+        this.fileCatalog = fileCatalog;
+    }
+
+    @PostConstruct
+    public void init() {
+        fileCatalog.addListener(this);
+    }
+
+    /**
+     * file_id ранее загруженного файла, если содержимое с тех пор не менялось
+     */
+    public Optional<String> find(File file) {
+        try {
+            String storedValue = redisService.getTelegramFileId(key(file));
+            if (storedValue == null) {
+                return Optional.empty();
+            }
+            int separator = storedValue.indexOf(VALUE_SEPARATOR);
+            if (separator < 0 || !storedValue.substring(0, separator).equals(contentHash(file))) {
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            return Optional.of(storedValue.substring(separator + 1));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось проверить file_id для {}: {}", file.getName(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Сохраняет file_id после загрузки файла в телеграм
+     */
+    public void remember(File file, String fileId) {
+        uploads.incrementAndGet();
+        try {
+            redisService.saveTelegramFileId(key(file), contentHash(file) + VALUE_SEPARATOR + fileId);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось сохранить file_id для {}: {}", file.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Телеграм отклонил сохраненный file_id - следующая отправка загрузит файл заново
+     */
+    public void invalidate(File file) {
+        invalidations.incrementAndGet();
+        contentHashes.remove(key(file));
+        redisService.deleteTelegramFileId(key(file));
+    }
+
+    @Override
+    public void onFileChanged(Path file) {
+        contentHashes.remove(key(file.toFile()));
+    }
+
+    @Override
+    public void onFileRemoved(Path file) {
+        contentHashes.remove(key(file.toFile()));
+        redisService.deleteTelegramFileId(key(file.toFile()));
+    }
+
+    private String contentHash(File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        ContentHash cached = contentHashes.get(key(file));
+        if (cached != null && cached.size() == size && cached.modified() == modified) {
+            return cached.sha256();
+        }
+        String sha256 = sha256(file.toPath());
+        contentHashes.put(key(file), new ContentHash(size, modified, sha256));
+        return sha256;
+    }
+
+    private String sha256(Path file) throws IOException {
+        try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file), MessageDigest.getInstance("SHA-256"))) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return HexFormat.of().formatHex(in.getMessageDigest().digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String key(File file) {
+        return file.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of(
+                "hits", hits.get(),
+                "uploads", uploads.get(),
+                "invalidations", invalidations.get(),
+                "hashedFiles", contentHashes.size()
+        );
+    }
+}
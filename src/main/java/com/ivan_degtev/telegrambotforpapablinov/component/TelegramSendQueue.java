@@ -0,0 +1,436 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Общая очередь исходящих запросов в телеграм. Все отправки проходят через token bucket на весь бот(30 сообщений в секунду)
+ * и через bucket чата(~1 сообщение в секунду в личке, 20 в минуту в группе). Тексты идут раньше документов, на 429
+ * чат ставится на паузу на retry_after и запрос повторяется. Сами запросы выполняются через executeAsync, поток очереди
+ * только решает, что и когда отправить.
+ * Текстовые запросы одного чата отправляются строго по одному, чтобы сообщения не перемешивались
+ */
+@Component
+@Slf4j
+public class TelegramSendQueue {
+
+    public enum Lane {
+        TEXT,
+        DOCUMENT
+    }
+
+    @FunctionalInterface
+    public interface TelegramCall<T> {
+        CompletableFuture<T> send() throws TelegramApiException;
+    }
+
+    private final static int TOO_MANY_REQUESTS = 429;
+    private final static Duration IDLE_CHAT_SWEEP_INTERVAL = Duration.ofMinutes(1);
+
+    private final TokenBucket globalBucket;
+    private final double privateChatPerSecond;
+    private final int privateChatBurst;
+    private final double groupChatPerSecond;
+    private final int groupChatBurst;
+    private final int capacity;
+    private final int maxRetries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Lane, Deque<SendTask<?>>> lanes = new EnumMap<>(Lane.class);
+    private final Map<String, ChatState> chats = new HashMap<>();
+    private int queuedTasks;
+    private int inFlightTasks;
+    private long lastSweepNanos = System.nanoTime();
+    private volatile boolean running = true;
+    private Thread dispatcher;
+
+    private final Map<Lane, AtomicLong> sentByLane = new EnumMap<>(Lane.class);
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong queueWaitTotalMillis = new AtomicLong();
+    private final AtomicLong sendLatencyTotalMillis = new AtomicLong();
+    private final AtomicLong lastSendLatencyMillis = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+
+    public TelegramSendQueue(
+            @Value("${telegram.send-queue.global-per-second:30}") double globalPerSecond,
+            @Value("${telegram.send-queue.private-chat-per-second:1}") double privateChatPerSecond,
+            @Value("${telegram.send-queue.private-chat-burst:3}") int privateChatBurst,
+            @Value("${telegram.send-queue.group-chat-per-minute:20}") double groupChatPerMinute,
+            @Value("${telegram.send-queue.group-chat-burst:3}") int groupChatBurst,
+            @Value("${telegram.send-queue.capacity:2000}") int capacity,
+            @Value("${telegram.send-queue.max-retries:3}") int maxRetries
+    ) {
+        this.globalBucket = new TokenBucket((int) Math.max(1, globalPerSecond), globalPerSecond);
+        this.privateChatPerSecond = privateChatPerSecond;
+        this.privateChatBurst = privateChatBurst;
+        this.groupChatPerSecond = groupChatPerMinute / 60;
+        this.groupChatBurst = groupChatBurst;
+        this.capacity = capacity;
+        this.maxRetries = maxRetries;
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<>());
+            sentByLane.put(lane, new AtomicLong());
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        dispatcher = new Thread(this::dispatchLoop, "tg-send-queue");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Останавливает поток очереди. Ещё не отправленные запросы завершаются RejectedExecutionException, чтобы
+     * ожидающие их не висели; запросы в полёте завершатся сами, но повторяться уже не будут
+     */
+    @PreDestroy
+    public void shutdown() {
+        List<SendTask<?>> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            running = false;
+            lanes.values().forEach(lane -> {
+                dropped.addAll(lane);
+                lane.clear();
+            });
+            queuedTasks = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        if (!dropped.isEmpty()) {
+            log.warn("Очередь отправки в телеграм остановлена, не отправлено запросов: {}", dropped.size());
+        }
+        dropped.forEach(task -> {
+            rejected.incrementAndGet();
+            task.result.completeExceptionally(new RejectedExecutionException("Очередь отправки в телеграм остановлена"));
+        });
+    }
+
+    /**
+     * Ставит запрос в очередь. Возвращаемый future завершается результатом телеграма или исключением запроса,
+     * при переполненной или остановленной очереди - RejectedExecutionException
+     */
+    public <T> CompletableFuture<T> submit(String chatId, Lane lane, TelegramCall<T> call) {
+        SendTask<T> task = new SendTask<>(chatId, lane, call);
+        lock.lock();
+        try {
+            if (!running) {
+                rejected.incrementAndGet();
+                task.result.completeExceptionally(new RejectedExecutionException("Очередь отправки в телеграм остановлена"));
+                return task.result;
+            }
+            if (queuedTasks >= capacity) {
+                rejected.incrementAndGet();
+                task.result.completeExceptionally(new RejectedExecutionException("Очередь отправки в телеграм переполнена"));
+                return task.result;
+            }
+            lanes.get(lane).addLast(task);
+            queuedTasks++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task.result;
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            SendTask<?> task;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                sweepIdleChats(now);
+                long[] waitNanos = {Long.MAX_VALUE};
+                task = nextReadyTask(now, waitNanos);
+                if (task == null) {
+                    if (waitNanos[0] == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(waitNanos[0]);
+                    }
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            send(task);
+        }
+    }
+
+    /**
+     * Первый запрос по приоритету линий, чей чат может отправлять прямо сейчас. Если такого нет, в waitNanos - через
+     * сколько освободится ближайший токен или кончится пауза после 429
+     */
+    private SendTask<?> nextReadyTask(long now, long[] waitNanos) {
+        if (queuedTasks == 0) {
+            return null;
+        }
+        long globalWait = globalBucket.nanosUntilToken(now);
+        if (globalWait > 0) {
+            waitNanos[0] = globalWait;
+            return null;
+        }
+
+        for (Lane lane : Lane.values()) {
+            Iterator<SendTask<?>> iterator = lanes.get(lane).iterator();
+            while (iterator.hasNext()) {
+                SendTask<?> task = iterator.next();
+                ChatState chat = chats.computeIfAbsent(task.chatId, id -> newChatState(id, now));
+                if (lane == Lane.TEXT && chat.textInFlight) {
+                    continue;
+                }
+                long chatWait = Math.max(chat.pausedUntilNanos - now, chat.bucket.nanosUntilToken(now));
+                if (chatWait > 0) {
+                    waitNanos[0] = Math.min(waitNanos[0], chatWait);
+                    continue;
+                }
+
+                iterator.remove();
+                queuedTasks--;
+                inFlightTasks++;
+                globalBucket.take(now);
+                chat.bucket.take(now);
+                chat.inFlight++;
+                if (lane == Lane.TEXT) {
+                    chat.textInFlight = true;
+                }
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private <T> void send(SendTask<T> task) {
+        long startNanos = System.nanoTime();
+        queueWaitTotalMillis.addAndGet(Duration.ofNanos(startNanos - task.lastEnqueuedNanos).toMillis());
+        CompletableFuture<T> response;
+        try {
+            response = task.call.send();
+        } catch (TelegramApiException | RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((result, error) -> onCompleted(task, startNanos, result, error));
+    }
+
+    private <T> void onCompleted(SendTask<T> task, long startNanos, T result, Throwable error) {
+        long now = System.nanoTime();
+        long latencyMillis = Duration.ofNanos(now - startNanos).toMillis();
+        lastSendLatencyMillis.set(latencyMillis);
+        sendLatencyTotalMillis.addAndGet(latencyMillis);
+        completedCount.incrementAndGet();
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        Integer retryAfter = retryAfterSeconds(cause);
+        boolean retry;
+
+        lock.lock();
+        try {
+            retry = running && retryAfter != null && task.attempts < maxRetries;
+            inFlightTasks--;
+            ChatState chat = chats.get(task.chatId);
+            if (chat != null) {
+                chat.inFlight--;
+                if (task.lane == Lane.TEXT) {
+                    chat.textInFlight = false;
+                }
+                if (retryAfter != null) {
+                    long pausedUntil = now + TimeUnit.SECONDS.toNanos(retryAfter);
+                    if (pausedUntil - chat.pausedUntilNanos > 0) {
+                        chat.pausedUntilNanos = pausedUntil;
+                    }
+                }
+            }
+            if (retry) {
+                task.attempts++;
+                task.lastEnqueuedNanos = now;
+                lanes.get(task.lane).addFirst(task);
+                queuedTasks++;
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (retryAfter != null) {
+            rateLimited.incrementAndGet();
+            log.warn("Телеграм ограничил отправку в чат {}, повтор через {} с", task.chatId, retryAfter);
+        }
+        if (retry) {
+            retried.incrementAndGet();
+        } else if (cause != null) {
+            failed.incrementAndGet();
+            task.result.completeExceptionally(cause);
+        } else {
+            sentByLane.get(task.lane).incrementAndGet();
+            task.result.complete(result);
+        }
+    }
+
+    private Integer retryAfterSeconds(Throwable error) {
+        if (error instanceof TelegramApiRequestException requestException
+                && requestException.getErrorCode() != null
+                && requestException.getErrorCode() == TOO_MANY_REQUESTS) {
+            if (requestException.getParameters() != null && requestException.getParameters().getRetryAfter() != null) {
+                return requestException.getParameters().getRetryAfter();
+            }
+            return 1;
+        }
+        return null;
+    }
+
+    /**
+     * id групп и каналов отрицательные, у них свой, более строгий лимит
+     */
+    private ChatState newChatState(String chatId, long now) {
+        boolean groupChat = chatId.startsWith("-");
+        return new ChatState(groupChat
+                ? new TokenBucket(groupChatBurst, groupChatPerSecond)
+                : new TokenBucket(privateChatBurst, privateChatPerSecond), now);
+    }
+
+    /**
+     * Состояние чатов без запросов в очереди и с полным bucket'ом больше не нужно
+     */
+    private void sweepIdleChats(long now) {
+        if (now - lastSweepNanos < IDLE_CHAT_SWEEP_INTERVAL.toNanos()) {
+            return;
+        }
+        lastSweepNanos = now;
+        Set<String> queuedChats = new HashSet<>();
+        lanes.values().forEach(lane -> lane.forEach(task -> queuedChats.add(task.chatId)));
+        chats.entrySet().removeIf(entry -> !queuedChats.contains(entry.getKey())
+                && entry.getValue().inFlight == 0
+                && now - entry.getValue().pausedUntilNanos >= 0
+                && entry.getValue().bucket.isFull(now));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Lane lane : Lane.values()) {
+                stats.put("queued" + laneName(lane), lanes.get(lane).size());
+            }
+            stats.put("inFlight", inFlightTasks);
+            stats.put("trackedChats", chats.size());
+        } finally {
+            lock.unlock();
+        }
+        for (Lane lane : Lane.values()) {
+            stats.put("sent" + laneName(lane), sentByLane.get(lane).get());
+        }
+        long completed = completedCount.get();
+        stats.put("failed", failed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("rateLimited", rateLimited.get());
+        stats.put("retried", retried.get());
+        stats.put("avgQueueWaitMs", completed == 0 ? 0 : queueWaitTotalMillis.get() / completed);
+        stats.put("avgSendLatencyMs", completed == 0 ? 0 : sendLatencyTotalMillis.get() / completed);
+        stats.put("lastSendLatencyMs", lastSendLatencyMillis.get());
+        return stats;
+    }
+
+    private String laneName(Lane lane) {
+        return lane == Lane.TEXT ? "Text" : "Documents";
+    }
+
+    private static class SendTask<T> {
+        private final String chatId;
+        private final Lane lane;
+        private final TelegramCall<T> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private long lastEnqueuedNanos = System.nanoTime();
+        private int attempts;
+
+        private SendTask(String chatId, Lane lane, TelegramCall<T> call) {
+            this.chatId = chatId;
+            this.lane = lane;
+            this.call = call;
+        }
+    }
+
+    private static class ChatState {
+        private final TokenBucket bucket;
+        private long pausedUntilNanos;
+        private int inFlight;
+        private boolean textInFlight;
+
+        private ChatState(TokenBucket bucket, long now) {
+            this.bucket = bucket;
+            this.pausedUntilNanos = now;
+        }
+    }
+
+    /**
+     * Token bucket без своей синхронизации, все обращения идут под lock очереди
+     */
+    private static class TokenBucket {
+        private final int capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long refilledAtNanos = System.nanoTime();
+
+        private TokenBucket(int capacity, double tokensPerSecond) {
+            this.capacity = Math.max(1, capacity);
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = this.capacity;
+        }
+
+        private long nanosUntilToken(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        private void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        private boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAtNanos) * tokensPerNano);
+            refilledAtNanos = now;
+        }
+    }
+}
@@ -2,32 +2,100 @@ package com.ivan_degtev.telegrambotforpapablinov.component;
 
 import com.ivan_degtev.telegrambotforpapablinov.config.BotConfig;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramWebhookBot;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.commands.SetMyCommands;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.commands.BotCommand;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaDocument;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 @Slf4j
 public class TelegramWebhookConfiguration extends TelegramWebhookBot {
 
     private final BotConfig botConfig;
+    private final TelegramFileIdCache telegramFileIdCache;
+    private final TelegramSendQueue telegramSendQueue;
 
-    public TelegramWebhookConfiguration(BotConfig botConfig) {
+    private final static int MEDIA_GROUP_MAX_SIZE = 10;
+    private final static String MESSAGE_NOT_MODIFIED = "message is not modified";
+    private final ExecutorService uploadExecutor;
+    private final int maxConcurrentUploadsPerChat;
+    /**
+     * Разрешения на загрузку есть только у чатов, куда сейчас идёт sendDocuments - последний вызов убирает запись
+     */
+    private final Map<String, ChatUploadPermits> chatUploadPermits = new ConcurrentHashMap<>();
+
+    /**
+     * @param users - сколько вызовов sendDocuments сейчас пользуются semaphore, меняется только внутри compute карты
+     */
+    private static class ChatUploadPermits {
+        private final Semaphore semaphore;
+        private int users;
+
+        private ChatUploadPermits(int permits) {
+            this.semaphore = new Semaphore(permits);
+        }
+    }
+
+    public TelegramWebhookConfiguration(
+            BotConfig botConfig,
+            TelegramFileIdCache telegramFileIdCache,
+            TelegramSendQueue telegramSendQueue,
+            @Value("${telegram.send-queue.http-threads:8}") int httpThreads,
+            @Value("${telegram.media-group.upload-threads:4}") int uploadThreads,
+            @Value("${telegram.media-group.max-concurrent-per-chat:2}") int maxConcurrentUploadsPerChat
+    ) {
+        super(botOptions(httpThreads));
         this.botConfig = botConfig;
+        this.telegramFileIdCache = telegramFileIdCache;
+        this.telegramSendQueue = telegramSendQueue;
+        this.maxConcurrentUploadsPerChat = maxConcurrentUploadsPerChat;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.uploadExecutor = Executors.newFixedThreadPool(uploadThreads, runnable -> {
+            Thread thread = new Thread(runnable, "tg-upload-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * executeAsync выполняется на пуле библиотеки, по умолчанию в нем один поток - все отправки шли бы по очереди
+     */
+    private static DefaultBotOptions botOptions(int httpThreads) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setMaxThreads(httpThreads);
+        return options;
     }
 
     @Override
@@ -76,7 +144,7 @@ public class TelegramWebhookConfiguration extends TelegramWebhookBot {
     }
 
     public void sendResponseMessage(String chatId, String text, Long replyToMessageId) {
-        String cleanedOutput = text.replaceAll("【.*?】", "");
+        String cleanedOutput = cleanAnnotations(text);
         SendMessage message = new SendMessage();
         message.setChatId(chatId);
         message.setText(cleanedOutput);
@@ -86,33 +154,249 @@ public class TelegramWebhookConfiguration extends TelegramWebhookBot {
             message.setReplyToMessageId(replyToMessageId.intValue());
         }
 
+        telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.TEXT, () -> executeAsync(message))
+                .whenComplete((sentMessage, error) -> {
+                    if (error == null) {
+                        log.info("Сообщение отправлено: " + text);
+                    } else {
+                        log.error("Ошибка при отправке сообщения: " + error.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Отправка документа. Уже загруженный ранее файл с неизменным содержимым отправляется по file_id без передачи байтов,
+     * если телеграм не принял сохраненный file_id - файл загружается заново
+     */
+    public void sendDocument(String chatId, File file, Long replyToMessageId) {
+        Optional<String> cachedFileId = telegramFileIdCache.find(file);
+        if (cachedFileId.isPresent()) {
+            try {
+                SendDocument document = buildSendDocument(chatId, new InputFile(cachedFileId.get()), replyToMessageId);
+                await(telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.DOCUMENT, () -> executeAsync(document)));
+                log.info("Файл отправлен по file_id: " + file.getName());
+                return;
+            } catch (TelegramApiException e) {
+                log.warn("Телеграм не принял file_id для {}, загружаем файл заново: {}", file.getName(), e.getMessage());
+                telegramFileIdCache.invalidate(file);
+            }
+        }
+
         try {
-            execute(message);
-            log.info("Сообщение отправлено: " + text);
+            SendDocument document = buildSendDocument(chatId, new InputFile(file), replyToMessageId);
+            Message sentMessage = await(telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.DOCUMENT,
+                    () -> executeAsync(document)));
+            if (sentMessage != null && sentMessage.getDocument() != null) {
+                telegramFileIdCache.remember(file, sentMessage.getDocument().getFileId());
+            }
+            log.info("Файл отправлен: " + file.getName());
         } catch (TelegramApiException e) {
-            log.error("Ошибка при отправке сообщения: " + e.getMessage());
+            log.error("Ошибка при отправке файла: " + e.getMessage());
         }
     }
 
-    public void sendDocument(String chatId, File file, Long replyToMessageId) {
+    /**
+     * Отправка нескольких документов ответом на один запрос: пачками до 10 файлов через sendMediaGroup, все пачки отвечают
+     * на одно и то же сообщение пользователя. Пачки загружаются параллельно, но не больше max-concurrent-per-chat
+     * одновременно в один чат. Метод возвращается, когда все пачки отправлены
+     */
+    public void sendDocuments(String chatId, List<File> files, Long replyToMessageId) {
+        if (files.isEmpty()) {
+            return;
+        }
+        if (files.size() == 1) {
+            sendDocument(chatId, files.get(0), replyToMessageId);
+            return;
+        }
+
+        Semaphore chatPermits = chatUploadPermits.compute(chatId, (key, permits) -> {
+            ChatUploadPermits current = permits != null ? permits : new ChatUploadPermits(maxConcurrentUploadsPerChat);
+            current.users++;
+            return current;
+        }).semaphore;
+        try {
+            List<CompletableFuture<Void>> uploads = new ArrayList<>();
+            for (int from = 0; from < files.size(); from += MEDIA_GROUP_MAX_SIZE) {
+                List<File> batch = files.subList(from, Math.min(files.size(), from + MEDIA_GROUP_MAX_SIZE));
+                chatPermits.acquireUninterruptibly();
+                uploads.add(CompletableFuture
+                        .runAsync(() -> sendDocumentBatch(chatId, batch, replyToMessageId), uploadExecutor)
+                        .whenComplete((result, error) -> chatPermits.release()));
+            }
+            CompletableFuture.allOf(uploads.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            // все пачки этого вызова завершены и вернули разрешения
+            chatUploadPermits.computeIfPresent(chatId, (key, permits) -> --permits.users == 0 ? null : permits);
+        }
+    }
+
+    private void sendDocumentBatch(String chatId, List<File> batch, Long replyToMessageId) {
+        if (batch.size() == 1) {
+            sendDocument(chatId, batch.get(0), replyToMessageId);
+            return;
+        }
+
+        List<Optional<String>> cachedFileIds = batch.stream().map(telegramFileIdCache::find).toList();
+        try {
+            rememberFileIds(batch, cachedFileIds, sendMediaGroup(chatId, buildSendMediaGroup(chatId, batch, cachedFileIds, replyToMessageId)));
+            log.info("Пачка из {} файлов отправлена одним сообщением", batch.size());
+            return;
+        } catch (TelegramApiException e) {
+            if (cachedFileIds.stream().noneMatch(Optional::isPresent)) {
+                log.error("Ошибка при отправке пачки файлов: " + e.getMessage());
+                return;
+            }
+            log.warn("Телеграм не принял пачку с file_id, загружаем файлы заново: {}", e.getMessage());
+            for (int i = 0; i < batch.size(); i++) {
+                if (cachedFileIds.get(i).isPresent()) {
+                    telegramFileIdCache.invalidate(batch.get(i));
+                }
+            }
+        }
+
+        List<Optional<String>> noFileIds = batch.stream().map(file -> Optional.<String>empty()).toList();
+        try {
+            rememberFileIds(batch, noFileIds, sendMediaGroup(chatId, buildSendMediaGroup(chatId, batch, noFileIds, replyToMessageId)));
+            log.info("Пачка из {} файлов загружена заново", batch.size());
+        } catch (TelegramApiException e) {
+            log.error("Ошибка при отправке пачки файлов: " + e.getMessage());
+        }
+    }
+
+    private List<Message> sendMediaGroup(String chatId, SendMediaGroup mediaGroup) throws TelegramApiException {
+        return await(telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.DOCUMENT, () -> executeAsync(mediaGroup)));
+    }
+
+    private SendMediaGroup buildSendMediaGroup(
+            String chatId,
+            List<File> batch,
+            List<Optional<String>> cachedFileIds,
+            Long replyToMessageId
+    ) {
+        List<InputMedia> medias = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            InputMediaDocument media = new InputMediaDocument();
+            if (cachedFileIds.get(i).isPresent()) {
+                media.setMedia(cachedFileIds.get(i).get());
+            } else {
+                media.setMedia(batch.get(i), batch.get(i).getName());
+            }
+            medias.add(media);
+        }
+
+        SendMediaGroup mediaGroup = new SendMediaGroup();
+        mediaGroup.setChatId(chatId);
+        mediaGroup.setMedias(medias);
+        if (replyToMessageId != null) {
+            mediaGroup.setReplyToMessageId(replyToMessageId.intValue());
+            mediaGroup.setAllowSendingWithoutReply(true);
+        }
+        return mediaGroup;
+    }
+
+    /**
+     * Сообщения пачки приходят в порядке файлов, file_id сохраняются только для загруженных, а не отправленных по file_id
+     */
+    private void rememberFileIds(List<File> batch, List<Optional<String>> cachedFileIds, List<Message> sentMessages) {
+        for (int i = 0; i < batch.size() && i < sentMessages.size(); i++) {
+            Message sentMessage = sentMessages.get(i);
+            if (cachedFileIds.get(i).isEmpty() && sentMessage.getDocument() != null) {
+                telegramFileIdCache.remember(batch.get(i), sentMessage.getDocument().getFileId());
+            }
+        }
+    }
+
+    private SendDocument buildSendDocument(String chatId, InputFile inputFile, Long replyToMessageId) {
         SendDocument document = new SendDocument();
         document.setChatId(chatId);
-        document.setDocument(new InputFile(file));
+        document.setDocument(inputFile);
 
         if (replyToMessageId != null) {
             document.setReplyToMessageId(replyToMessageId.intValue());
         }
+        return document;
+    }
+
+    /**
+     * Отправка сообщения-заглушки без разметки, которое потом будет дописываться через editMessageText
+     * @return id отправленного сообщения или null, если отправить не удалось
+     */
+    public Integer sendPlaceholderMessage(String chatId, String text, Long replyToMessageId) {
+        SendMessage message = new SendMessage();
+        message.setChatId(chatId);
+        message.setText(text);
+
+        if (replyToMessageId != null) {
+            message.setReplyToMessageId(replyToMessageId.intValue());
+        }
 
         try {
-            execute(document);
-            log.info("Файл отправлен: " + file.getName());
+            Message sentMessage = await(telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.TEXT, () -> executeAsync(message)));
+            return sentMessage.getMessageId();
         } catch (TelegramApiException e) {
-            log.error("Ошибка при отправке файла: " + e.getMessage());
+            log.error("Ошибка при отправке заглушки: " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * Изменение текста ранее отправленного сообщения. Промежуточные версии ответа отправляются без markdown, так как
+     * недописанная разметка не проходит валидацию телеграма
+     * @return false, если телеграм не принял изменение. Ответ "message is not modified" - не ошибка: текст в чате уже такой
+     */
+    public boolean editMessageText(String chatId, Integer messageId, String text, boolean markdown) {
+        EditMessageText editMessage = new EditMessageText();
+        editMessage.setChatId(chatId);
+        editMessage.setMessageId(messageId);
+        editMessage.setText(cleanAnnotations(text));
+        if (markdown) {
+            editMessage.enableMarkdown(true);
+        }
+
+        try {
+            await(telegramSendQueue.submit(chatId, TelegramSendQueue.Lane.TEXT, () -> executeAsync(editMessage)));
+            return true;
+        } catch (TelegramApiRequestException e) {
+            if (e.getApiResponse() != null && e.getApiResponse().contains(MESSAGE_NOT_MODIFIED)) {
+                log.debug("Сообщение {} уже содержит этот текст", messageId);
+                return true;
+            }
+            log.warn("Ошибка при изменении сообщения {}: {}", messageId, e.getMessage());
+            return false;
+        } catch (TelegramApiException e) {
+            log.warn("Ошибка при изменении сообщения {}: {}", messageId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Ожидание запроса из очереди отправки для методов, которым нужен результат телеграма. Ошибки очереди приводятся
+     * к TelegramApiException, чтобы вызывающий код обрабатывал их как раньше
+     */
+    private <T> T await(CompletableFuture<T> response) throws TelegramApiException {
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TelegramApiException telegramApiException) {
+                throw telegramApiException;
+            }
+            throw new TelegramApiException(e.getCause());
+        }
+    }
+
+    /**
+     * Убирает из ответа ассистента ссылки на источники вида 【4:0†source】, в том числе недописанную в конце стрима
+     */
+    private String cleanAnnotations(String text) {
+        return text.replaceAll("【.*?】", "").replaceAll("【[^】]*$", "");
+    }
 
     public void sendReplyResponseMessage(String chatId, String text) {
         sendResponseMessage(chatId, text, null);
     }
+
+    @PreDestroy
+    public void shutdownUploads() {
+        uploadExecutor.shutdownNow();
+    }
 }
@@ -0,0 +1,109 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Диспетчер входящих апдейтов телеграма. Веб-хук отвечает сразу, а сама обработка уходит в ограниченный пул потоков.
+ * Апдейты одного пользователя (ключ - fromId) обрабатываются строго по очереди, разные пользователи - параллельно.
+ * Если в очереди больше задач, чем queue-capacity, апдейт отклоняется и телеграм повторит его позже.
+ */
+@Component
+@Slf4j
+public class WebhookUpdateDispatcher {
+
+    private final ExecutorService executor;
+    private final int queueCapacity;
+
+    private final Map<String, CompletableFuture<Void>> tailsByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public WebhookUpdateDispatcher(
+            @Value("${telegram.dispatcher.threads:16}") int threads,
+            @Value("${telegram.dispatcher.queue-capacity:500}") int queueCapacity
+    ) {
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tg-dispatcher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ставит задачу в очередь пользователя
+     * @param key - fromId, по нему сохраняется порядок обработки
+     * @return false, если очередь переполнена и задача не принята
+     */
+    public boolean dispatch(String key, Runnable task) {
+        if (queueDepth.incrementAndGet() > queueCapacity) {
+            queueDepth.decrementAndGet();
+            rejected.incrementAndGet();
+            log.warn("Очередь диспетчера переполнена ({}), апдейт от {} отклонен", queueCapacity, key);
+            return false;
+        }
+
+        CompletableFuture<Void> next = tailsByKey.compute(key, (k, tail) -> {
+            CompletableFuture<Void> previous = tail != null ? tail : CompletableFuture.completedFuture(null);
+            return previous.handleAsync((result, error) -> {
+                runSafely(k, task);
+                return null;
+            }, executor);
+        });
+        // очистка регистрируется после compute: если задача уже выполнилась, колбэк отработает сразу в этом потоке,
+        // а изменять тот же ключ изнутри compute ConcurrentHashMap не позволяет
+        next.whenComplete((result, error) -> tailsByKey.remove(key, next));
+        return true;
+    }
+
+    private void runSafely(String key, Runnable task) {
+        try {
+            task.run();
+            processed.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            log.error("Ошибка при обработке апдейта от {}: {}", key, e.getMessage(), e);
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of(
+                "queueDepth", queueDepth.get(),
+                "queueCapacity", queueCapacity,
+                "activeKeys", tailsByKey.size(),
+                "processed", processed.get(),
+                "rejected", rejected.get(),
+                "failed", failed.get()
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Диспетчер не успел обработать {} апдейтов до остановки", queueDepth.get());
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,28 +1,51 @@
 package com.ivan_degtev.telegrambotforpapablinov.config;
 
 import com.ivan_degtev.telegrambotforpapablinov.component.PersistentChatMemoryStore;
+import com.ivan_degtev.telegrambotforpapablinov.component.RetrievedContextStrippingChatMemoryStore;
+import com.ivan_degtev.telegrambotforpapablinov.component.SummarizingTokenWindowChatMemory;
 import com.ivan_degtev.telegrambotforpapablinov.service.ai.Assistant;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.ChatHistorySummarizer;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.model.Tokenizer;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.input.PromptTemplate;
 import dev.langchain4j.model.openai.OpenAiChatModelName;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import dev.langchain4j.rag.DefaultRetrievalAugmentor;
+import dev.langchain4j.rag.RetrievalAugmentor;
+import dev.langchain4j.rag.content.injector.DefaultContentInjector;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.stereotype.Component;
+
+import java.util.List;
 
 @Configuration
 @Slf4j
 @RequiredArgsConstructor
+@EnableConfigurationProperties(ChatMemoryWindowProperties.class)
 public class AiConfig {
 
+    private final static PromptTemplate RAG_PROMPT_TEMPLATE =
+            PromptTemplate.from("{{userMessage}}\n\n" + DocumentContentRetriever.CONTEXT_HEADER + "\n{{contents}}");
+
     @Value("${openai.token}")
     private String openAiToken;
     private final PersistentChatMemoryStore persistentChatMemoryStore;
+    private final ChatMemoryWindowProperties chatMemoryWindowProperties;
+    private final ChatHistorySummarizer chatHistorySummarizer;
 
     @Bean
     public ChatLanguageModel chatLanguageModel() {
@@ -35,19 +58,72 @@ public class AiConfig {
     }
 
     @Bean
-    public Assistant assistant() {
+    public StreamingChatLanguageModel streamingChatLanguageModel() {
+        return OpenAiStreamingChatModel.builder()
+                .apiKey(openAiToken)
+                .modelName(OpenAiChatModelName.GPT_3_5_TURBO)
+                .build();
+    }
+
+    /**
+     * Ответ на обычный вопрос - один запрос chat completion: фрагменты документов находятся локально заранее
+     * и подставляются в сообщение пользователя
+     */
+    @Bean
+    public Assistant assistant(RetrievalAugmentor retrievalAugmentor) {
         return AiServices.builder(Assistant.class)
                 .chatLanguageModel(chatLanguageModel())
+                .streamingChatLanguageModel(streamingChatLanguageModel())
                 .chatMemoryProvider(chatMemoryProvider())
+                .retrievalAugmentor(retrievalAugmentor)
                 .build();
     }
 
     @Bean
-    public ChatMemoryProvider chatMemoryProvider() {
-        return memoryId -> MessageWindowChatMemory.builder()
-                .id(memoryId)
-                .maxMessages(100)
-                .chatMemoryStore(persistentChatMemoryStore)
+    public RetrievalAugmentor retrievalAugmentor(DocumentContentRetriever documentContentRetriever) {
+        return DefaultRetrievalAugmentor.builder()
+                .contentRetriever(documentContentRetriever)
+                .contentInjector(new DefaultContentInjector(RAG_PROMPT_TEMPLATE, List.of(DocumentContentRetriever.FILE_NAME_METADATA)))
                 .build();
     }
+
+    /**
+     * TOKENS - окно по бюджету токенов пользователя со сводкой вытесненных реплик, MESSAGES - последние max-messages
+     * сообщений. В обоих режимах фрагменты документов хранятся только в последнем вопросе
+     */
+    @Bean
+    public ChatMemoryProvider chatMemoryProvider() {
+        if (chatMemoryWindowProperties.getMode() == ChatMemoryWindowProperties.Mode.MESSAGES) {
+            ChatMemoryStore strippingStore = new RetrievedContextStrippingChatMemoryStore(persistentChatMemoryStore);
+            return memoryId -> MessageWindowChatMemory.builder()
+                    .id(memoryId)
+                    .maxMessages(chatMemoryWindowProperties.getMaxMessages())
+                    .chatMemoryStore(strippingStore)
+                    .build();
+        }
+        Tokenizer tokenizer = tokenizer();
+        ChatMemoryWindowProperties.Summary summary = chatMemoryWindowProperties.getSummary();
+        return memoryId -> new SummarizingTokenWindowChatMemory(
+                memoryId,
+                chatMemoryWindowProperties.getMaxTokens(memoryId),
+                summary.getTargetRatio(),
+                summary.getMaxTokens(),
+                tokenizer,
+                persistentChatMemoryStore,
+                summary.isEnabled() ? chatHistorySummarizer : null
+        );
+    }
+
+    @Bean
+    public Tokenizer tokenizer() {
+        return new OpenAiTokenizer(OpenAiChatModelName.GPT_3_5_TURBO);
+    }
+
+    /**
+     * Локальная модель эмбеддингов(onnx, работает в процессе), используется семантическим кэшем ответов
+     */
+    @Bean
+    public EmbeddingModel embeddingModel() {
+        return new AllMiniLmL6V2EmbeddingModel();
+    }
 }
@@ -0,0 +1,41 @@
+package com.ivan_degtev.telegrambotforpapablinov.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Настройки окна памяти ассистента langchain4j. В режиме TOKENS у каждого пользователя(memoryId) свой бюджет токенов,
+ * по умолчанию max-tokens, отдельным пользователям можно задать другой в user-max-tokens
+ */
+@Data
+@ConfigurationProperties(prefix = "chat-memory.window")
+public class ChatMemoryWindowProperties {
+
+    private Mode mode = Mode.TOKENS;
+    private int maxMessages = 100;
+    private int maxTokens = 2000;
+    private Map<String, Integer> userMaxTokens = new HashMap<>();
+    private Summary summary = new Summary();
+
+    public int getMaxTokens(Object memoryId) {
+        return userMaxTokens.getOrDefault(String.valueOf(memoryId), maxTokens);
+    }
+
+    public enum Mode {
+        MESSAGES,
+        TOKENS
+    }
+
+    @Data
+    public static class Summary {
+        private boolean enabled = true;
+        private int maxTokens = 300;
+        /**
+         * До какой доли бюджета ужимается окно при переполнении, запас нужен чтобы сводка не пересчитывалась на каждом сообщении
+         */
+        private double targetRatio = 0.6;
+    }
+}
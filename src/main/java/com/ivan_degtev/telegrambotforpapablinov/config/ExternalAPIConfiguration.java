@@ -1,11 +1,13 @@
 package com.ivan_degtev.telegrambotforpapablinov.config;
 
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.reactive.function.client.WebClient;
 
 @Configuration
+@EnableConfigurationProperties(HttpClientProperties.class)
 public class ExternalAPIConfiguration {
 
     @Bean
@@ -0,0 +1,34 @@
+package com.ivan_degtev.telegrambotforpapablinov.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Настройки пулов соединений для внешних апи. Ключ мапы - имя апстрима(openai, telegram, notion)
+ */
+@Data
+@ConfigurationProperties(prefix = "http")
+public class HttpClientProperties {
+
+    private Map<String, Pool> clients = new HashMap<>();
+
+    public Pool getPool(String upstream) {
+        return clients.getOrDefault(upstream, new Pool());
+    }
+
+    @Data
+    public static class Pool {
+        private int maxConnections = 50;
+        private int pendingAcquireMaxCount = 500;
+        private long pendingAcquireTimeoutMs = 10_000;
+        private long maxIdleTimeMs = 55_000;
+        private long maxLifeTimeMs = 600_000;
+        private long evictInBackgroundMs = 30_000;
+        private int connectTimeoutMs = 5_000;
+        private long responseTimeoutMs = 60_000;
+        private boolean http2 = false;
+    }
+}
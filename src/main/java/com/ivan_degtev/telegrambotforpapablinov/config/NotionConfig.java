@@ -1,5 +1,6 @@
 package com.ivan_degtev.telegrambotforpapablinov.config;
 
+import com.ivan_degtev.telegrambotforpapablinov.component.HttpConnectorRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -13,8 +14,9 @@ public class NotionConfig {
     private String notionToken;
 
     @Bean
-    public WebClient notionWebClient() {
+    public WebClient notionWebClient(HttpConnectorRegistry httpConnectorRegistry) {
         return WebClient.builder()
+                .clientConnector(httpConnectorRegistry.connector("notion"))
                 .baseUrl("https://api.notion.com/v1")
                 .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + notionToken)
                 .defaultHeader("Notion-Version", "2022-06-28")
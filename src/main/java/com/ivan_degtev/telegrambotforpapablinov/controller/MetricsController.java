@@ -0,0 +1,156 @@
+package com.ivan_degtev.telegrambotforpapablinov.controller;
+
+import com.ivan_degtev.telegrambotforpapablinov.component.CompressedPdfCache;
+import com.ivan_degtev.telegrambotforpapablinov.component.FileNameIndex;
+import com.ivan_degtev.telegrambotforpapablinov.component.HttpConnectorRegistry;
+import com.ivan_degtev.telegrambotforpapablinov.component.PersistentChatMemoryStore;
+import com.ivan_degtev.telegrambotforpapablinov.component.ProgressiveAnswerSender;
+import com.ivan_degtev.telegrambotforpapablinov.component.TelegramFileIdCache;
+import com.ivan_degtev.telegrambotforpapablinov.component.TelegramSendQueue;
+import com.ivan_degtev.telegrambotforpapablinov.component.WebhookUpdateDispatcher;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.ChatHistorySummarizer;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentSearchService;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.OpenAiAssistantsClient;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.SemanticAnswerCache;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.ThreadRotationService;
+import com.ivan_degtev.telegrambotforpapablinov.service.impl.UpdateIdServiceImpl;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * Утилитные ручки для просмотра внутренних метрик бота
+ */
+@RestController
+@Slf4j
+@RequiredArgsConstructor
+@RequestMapping(path = "/metrics")
+public class MetricsController {
+
+    private final WebhookUpdateDispatcher webhookUpdateDispatcher;
+    private final ProgressiveAnswerSender progressiveAnswerSender;
+    private final HttpConnectorRegistry httpConnectorRegistry;
+    private final SemanticAnswerCache semanticAnswerCache;
+    private final OpenAiAssistantsClient openAiAssistantsClient;
+    private final ThreadRotationService threadRotationService;
+    private final UpdateIdServiceImpl updateIdService;
+    private final FileNameIndex fileNameIndex;
+    private final DocumentSearchService documentSearchService;
+    private final TelegramFileIdCache telegramFileIdCache;
+    private final CompressedPdfCache compressedPdfCache;
+    private final TelegramSendQueue telegramSendQueue;
+    private final PersistentChatMemoryStore persistentChatMemoryStore;
+    private final ChatHistorySummarizer chatHistorySummarizer;
+    private final DocumentContentRetriever documentContentRetriever;
+
+    @GetMapping(path = "/dispatcher")
+    public ResponseEntity<Map<String, Object>> getDispatcherStats() {
+        return ResponseEntity
+                .ok()
+                .body(webhookUpdateDispatcher.getStats());
+    }
+
+    @GetMapping(path = "/delivery")
+    public ResponseEntity<Map<String, Object>> getDeliveryStats() {
+        return ResponseEntity
+                .ok()
+                .body(progressiveAnswerSender.getStats());
+    }
+
+    @GetMapping(path = "/http")
+    public ResponseEntity<Map<String, Object>> getHttpPoolStats() {
+        return ResponseEntity
+                .ok()
+                .body(httpConnectorRegistry.getStats());
+    }
+
+    @GetMapping(path = "/answer-cache")
+    public ResponseEntity<Map<String, Object>> getAnswerCacheStats() {
+        return ResponseEntity
+                .ok()
+                .body(semanticAnswerCache.getStats());
+    }
+
+    @GetMapping(path = "/openai")
+    public ResponseEntity<Map<String, Object>> getOpenAiCallStats() {
+        return ResponseEntity
+                .ok()
+                .body(openAiAssistantsClient.getStats());
+    }
+
+    @GetMapping(path = "/thread-rotation")
+    public ResponseEntity<Map<String, Object>> getThreadRotationStats() {
+        return ResponseEntity
+                .ok()
+                .body(threadRotationService.getStats());
+    }
+
+    @GetMapping(path = "/dedupe")
+    public ResponseEntity<Map<String, Object>> getDedupeStats() {
+        return ResponseEntity
+                .ok()
+                .body(updateIdService.getStats());
+    }
+
+    @GetMapping(path = "/file-index")
+    public ResponseEntity<Map<String, Object>> getFileIndexStats() {
+        return ResponseEntity
+                .ok()
+                .body(fileNameIndex.getStats());
+    }
+
+    @GetMapping(path = "/document-search")
+    public ResponseEntity<Map<String, Object>> getDocumentSearchStats() {
+        return ResponseEntity
+                .ok()
+                .body(documentSearchService.getStats());
+    }
+
+    @GetMapping(path = "/file-ids")
+    public ResponseEntity<Map<String, Object>> getTelegramFileIdStats() {
+        return ResponseEntity
+                .ok()
+                .body(telegramFileIdCache.getStats());
+    }
+
+    @GetMapping(path = "/compressed-pdf")
+    public ResponseEntity<Map<String, Object>> getCompressedPdfStats() {
+        return ResponseEntity
+                .ok()
+                .body(compressedPdfCache.getStats());
+    }
+
+    @GetMapping(path = "/send-queue")
+    public ResponseEntity<Map<String, Object>> getSendQueueStats() {
+        return ResponseEntity
+                .ok()
+                .body(telegramSendQueue.getStats());
+    }
+
+    @GetMapping(path = "/chat-memory")
+    public ResponseEntity<Map<String, Object>> getChatMemoryStats() {
+        return ResponseEntity
+                .ok()
+                .body(persistentChatMemoryStore.getStats());
+    }
+
+    @GetMapping(path = "/chat-memory-summary")
+    public ResponseEntity<Map<String, Object>> getChatMemorySummaryStats() {
+        return ResponseEntity
+                .ok()
+                .body(chatHistorySummarizer.getStats());
+    }
+
+    @GetMapping(path = "/retrieval")
+    public ResponseEntity<Map<String, Object>> getRetrievalStats() {
+        return ResponseEntity
+                .ok()
+                .body(documentContentRetriever.getStats());
+    }
+}
@@ -3,6 +3,7 @@ package com.ivan_degtev.telegrambotforpapablinov.controller;
 import com.ivan_degtev.telegrambotforpapablinov.service.TelegramService;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -20,13 +21,16 @@ public class WebhookController {
     /**
      * На эту ручку будут приходить все входщие и исходящие сообщения с вотсапа, переброшенные сюда через чатпуш -> ngrok
      * Нужно в дальнейшей логике корректно фильтровать и не обрабатывать через LLM исходящие сообшения
+     * Ответ отдаётся сразу, обработка идет в WebhookUpdateDispatcher
      */
     @PostMapping("/webhook")
     public ResponseEntity<String> handleWebhook(
             @RequestHeader Map<String, String> headers,
             @RequestBody String payload
     ) {
-        telegramService.getNewMessagesFromWebhook(payload);
+        if (!telegramService.getNewMessagesFromWebhook(payload)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Очередь обработки переполнена, повторите позже");
+        }
         return ResponseEntity.ok("Сообщение через веб-хук успешно получено!");
     }
 }
@@ -0,0 +1,24 @@
+package com.ivan_degtev.telegrambotforpapablinov.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Состояние пользователя в одном хэше редиса: режим запросов, текущий тред open ai и кол-во сообщений в нём.
+ * Читается одним HGETALL в начале обработки апдейта и передаётся дальше по цепочке
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserSessionState {
+
+    private String fromId;
+    private TYPE_REQUEST typeRequest;
+    private String threadId;
+    private int messageCount;
+
+    public static UserSessionState empty(String fromId) {
+        return new UserSessionState(fromId, TYPE_REQUEST.DEFAULT, null, 0);
+    }
+}
@@ -0,0 +1,105 @@
+package com.ivan_degtev.telegrambotforpapablinov.mapper;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import static dev.langchain4j.data.message.ChatMessageDeserializer.messageFromJson;
+import static dev.langchain4j.data.message.ChatMessageSerializer.messageToJson;
+
+/**
+ * Компактное бинарное представление одного сообщения памяти ассистента для журнала PersistentChatMemoryStore.
+ * Первый байт - тип записи, дальше строки в виде длина + utf-8. Обычные текстовые сообщения пишутся без json,
+ * остальное(картинки в сообщении пользователя, вызовы инструментов) - через json langchain4j
+ */
+@Service
+public class ChatMessageBinaryMapper {
+
+    private final static byte JSON = 0;
+    private final static byte SYSTEM = 1;
+    private final static byte USER = 2;
+    private final static byte NAMED_USER = 3;
+    private final static byte AI = 4;
+    private final static byte TOOL_RESULT = 5;
+
+    public byte[] toBytes(ChatMessage message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (message instanceof SystemMessage systemMessage) {
+                out.writeByte(SYSTEM);
+                writeString(out, systemMessage.text());
+            } else if (message instanceof UserMessage userMessage && userMessage.hasSingleText()) {
+                if (userMessage.name() == null) {
+                    out.writeByte(USER);
+                } else {
+                    out.writeByte(NAMED_USER);
+                    writeString(out, userMessage.name());
+                }
+                writeString(out, userMessage.singleText());
+            } else if (message instanceof AiMessage aiMessage && !aiMessage.hasToolExecutionRequests() && aiMessage.text() != null) {
+                out.writeByte(AI);
+                writeString(out, aiMessage.text());
+            } else if (message instanceof ToolExecutionResultMessage resultMessage) {
+                out.writeByte(TOOL_RESULT);
+                writeString(out, resultMessage.id());
+                writeString(out, resultMessage.toolName());
+                writeString(out, resultMessage.text());
+            } else {
+                out.writeByte(JSON);
+                writeString(out, messageToJson(message));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public ChatMessage fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte type = in.readByte();
+            return switch (type) {
+                case SYSTEM -> SystemMessage.from(readString(in));
+                case USER -> UserMessage.from(readString(in));
+                case NAMED_USER -> UserMessage.from(readString(in), readString(in));
+                case AI -> AiMessage.from(readString(in));
+                case TOOL_RESULT -> ToolExecutionResultMessage.from(readString(in), readString(in), readString(in));
+                case JSON -> messageFromJson(readString(in));
+                default -> throw new IllegalStateException("Неизвестный тип записи сообщения: " + type);
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * null пишется длиной -1, id и имя инструмента у результата вызова могут отсутствовать
+     */
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ivan_degtev.telegrambotforpapablinov.mapper;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Извлечение текста из документов компании для локального поиска. docx и xlsx - это zip с xml внутри, текст берётся
+ * прямо из xml(word/document.xml, xl/sharedStrings.xml) без тяжёлых библиотек, pdf - через PDFTextStripper.
+ * Для остальных форматов(doc, xls, cdr и т.д.) возвращается пустая строка - такие файлы ищутся только по имени
+ */
+@Service
+@Slf4j
+public class DocumentTextExtractor {
+
+    private final static Pattern DOCX_TEXT = Pattern.compile("<w:t(?:\\s[^>]*)?>([^<]*)</w:t>|</w:p>|<w:tab/>|<w:br/>");
+    private final static Pattern XLSX_TEXT = Pattern.compile("<t(?:\\s[^>]*)?>([^<]*)</t>");
+    private final static int MAX_TEXT_LENGTH = 200_000;
+
+    public String extractText(Path file) {
+        String fileName = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        try {
+            if (fileName.endsWith(".docx")) {
+                return extractFromZipXml(file, "word/document.xml", DOCX_TEXT);
+            } else if (fileName.endsWith(".xlsx")) {
+                return extractFromZipXml(file, "xl/sharedStrings.xml", XLSX_TEXT);
+            } else if (fileName.endsWith(".pdf")) {
+                return extractFromPdf(file);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось извлечь текст из {}: {}", file.getFileName(), e.getMessage());
+        }
+        return "";
+    }
+
+    private String extractFromZipXml(Path file, String entryName, Pattern textPattern) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(file))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    return collectText(readEntry(zip), textPattern);
+                }
+            }
+        }
+        return "";
+    }
+
+    private String readEntry(InputStream zip) throws IOException {
+        return new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Текстовые узлы xml подряд, конец абзаца docx - перевод строки, ячейки xlsx - через перевод строки
+     */
+    private String collectText(String xml, Pattern textPattern) {
+        StringBuilder text = new StringBuilder();
+        Matcher matcher = textPattern.matcher(xml);
+        while (matcher.find() && text.length() < MAX_TEXT_LENGTH) {
+            if (matcher.group(1) != null) {
+                text.append(unescapeXml(matcher.group(1)));
+                if (textPattern == XLSX_TEXT) {
+                    text.append('\n');
+                }
+            } else {
+                text.append(matcher.group().equals("</w:p>") ? '\n' : ' ');
+            }
+        }
+        return text.toString();
+    }
+
+    private String extractFromPdf(Path file) throws IOException {
+        try (PDDocument document = PDDocument.load(file.toFile())) {
+            String text = new PDFTextStripper().getText(document);
+            return text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+        }
+    }
+
+    private String unescapeXml(String value) {
+        return value
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+}
@@ -29,6 +29,19 @@ public class OpenAiMapper {
         }
     }
 
+    /**
+     * id треда из объекта run - нужен, когда тред создается вместе с run одним запросом
+     */
+    public String extractThreadIdFromRun(String jsonString) {
+        try {
+            JsonNode jsonNode = objectMapper.readTree(jsonString);
+            return jsonNode.path("thread_id").asText();
+        } catch (Exception e) {
+            log.error("Error extracting thread id from run", e);
+            return null;
+        }
+    }
+
     public String extractRunStatus(String jsonString) {
         try {
             JsonNode jsonNode = objectMapper.readTree(jsonString);
@@ -54,6 +67,21 @@ public class OpenAiMapper {
         return null;
     }
 
+    /**
+     * Первое сообщение из списка сообщений треда в виде отдельного json
+     */
+    public String extractLatestMessage(String jsonString) {
+        try {
+            JsonNode dataArray = objectMapper.readTree(jsonString).path("data");
+            if (dataArray.isArray() && !dataArray.isEmpty()) {
+                return objectMapper.writeValueAsString(dataArray.get(0));
+            }
+        } catch (Exception e) {
+            log.error("Error parsing JSON to extract latest message", e);
+        }
+        return null;
+    }
+
     public String extractDataFromLlmAnswer(String jsonString) {
         try {
             JsonNode jsonNode = objectMapper.readTree(jsonString);
@@ -68,6 +96,39 @@ public class OpenAiMapper {
         return null;
     }
 
+    /**
+     * Текст ответа обычного chat completion(choices[0].message.content)
+     */
+    public String extractChatCompletionContent(String jsonString) {
+        try {
+            JsonNode choices = objectMapper.readTree(jsonString).path("choices");
+            if (choices.isArray() && !choices.isEmpty()) {
+                return choices.get(0).path("message").path("content").asText("");
+            }
+        } catch (Exception e) {
+            log.error("Error extracting content from chat completion", e);
+        }
+        return "";
+    }
+
+    /**
+     * Достает кусок текста из события thread.message.delta стрима run
+     */
+    public String extractTextDelta(String jsonString) {
+        StringBuilder delta = new StringBuilder();
+        try {
+            JsonNode contentArray = objectMapper.readTree(jsonString).path("delta").path("content");
+            for (JsonNode contentNode : contentArray) {
+                if ("text".equals(contentNode.path("type").asText())) {
+                    delta.append(contentNode.path("text").path("value").asText(""));
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error extracting text delta from stream event", e);
+        }
+        return delta.toString();
+    }
+
     public StringBuilder extractRoleAndContentFromMemory(String jsonString) {
         StringBuilder conversation = new StringBuilder();
 
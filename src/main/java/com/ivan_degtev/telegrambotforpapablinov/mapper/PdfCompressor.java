@@ -1,55 +1,589 @@
 package com.ivan_degtev.telegrambotforpapablinov.mapper;
 
 
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+/**
+ * Сжатие pdf. compressToTargetSize подбирает режим и параметры под целевой размер за один проход: документы, вес которых
+ * в основном в картинках, сжимаются заменой встроенных картинок на уменьшенные jpeg с сохранением текста, остальные -
+ * растеризацией страниц в jpeg с DPI и качеством, подобранными по нескольким пробным страницам.
+ * <p>
+ * Растеризация: страницы рендерятся диапазонами по pages-per-task на отдельном ForkJoin пуле,
+ * у каждого потока своя копия исходного документа(PDDocument не потокобезопасен). Поток сразу сжимает картинку
+ * страницы deflate-ом и отпускает BufferedImage, в памяти одновременно не больше max-pages-in-flight сжатых страниц.
+ * Исходник и результат работают через временные файлы PDFBox(MemoryUsageSetting.setupTempFileOnly), страницы
+ * дописываются в результат по порядку по мере готовности, поэтому пиковая память не зависит от размера документа
+ */
 @Service
 @Slf4j
 public class PdfCompressor {
+
+    private final static int LOSSLESS_DPI = 150;
+    private final static int SAMPLE_PAGES = 3;
+    private final static int SAMPLE_IMAGES = 8;
+    /**
+     * Оценка по выборке неточна, параметры выбираются так, чтобы оценка была не выше этой доли от цели
+     */
+    private final static double TARGET_SAFETY_MARGIN = 0.85;
+    private final static double IMAGE_HEAVY_SHARE = 0.5;
+    private final static int MIN_IMAGE_SIDE_TO_RECOMPRESS = 64;
+    private final static long MIN_IMAGE_BYTES_TO_RECOMPRESS = 16 * 1024;
+    private final static long PAGE_OVERHEAD_BYTES = 1024;
+
+    /**
+     * Ступени качества от лучшей к худшей, берётся первая, которая по оценке укладывается в целевой размер
+     */
+    private final static List<Quality> QUALITY_STEPS = List.of(
+            new Quality(150, 0.85f),
+            new Quality(150, 0.75f),
+            new Quality(120, 0.7f),
+            new Quality(100, 0.6f),
+            new Quality(85, 0.5f),
+            new Quality(72, 0.45f),
+            new Quality(50, 0.4f)
+    );
+
+    private final ForkJoinPool renderPool;
+    private final int pagesPerTask;
+    private final int maxPagesInFlight;
+
+    /**
+     * Страница, отрендеренная и сжатая в потоке пула: jpeg(DCTDecode) или raw RGB 8 бит на канал после deflate(FlateDecode)
+     */
+    private record EncodedPage(int pageIndex, int width, int height, COSName filter, byte[] data) {
+    }
+
+    /**
+     * @param jpegQuality - качество jpeg от 0 до 1, null - без потерь(deflate)
+     */
+    private record Quality(int dpi, Float jpegQuality) {
+    }
+
+    /**
+     * Картинка документа и длина её потока в файле
+     */
+    private record ImageUsage(PDImageXObject image, float pageLongSide, long streamLength) {
+    }
+
+    public PdfCompressor(
+            @Value("${pdf.compression.threads:0}") int threads,
+            @Value("${pdf.compression.pages-per-task:4}") int pagesPerTask,
+            @Value("${pdf.compression.max-pages-in-flight:16}") int maxPagesInFlight
+    ) {
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.renderPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("pdf-render-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        this.pagesPerTask = Math.max(1, pagesPerTask);
+        this.maxPagesInFlight = Math.max(this.pagesPerTask, maxPagesInFlight);
+    }
+
+    /**
+     * Растеризация без потерь в 150 DPI
+     */
     public File compressPdfWithImages(File inputFile, String outputFilePath) throws IOException {
-        try (PDDocument originalDocument = PDDocument.load(inputFile)) {
-            PDDocument compressedDocument = new PDDocument();
-            PDFRenderer renderer = new PDFRenderer(originalDocument);
+        return rasterize(inputFile, outputFilePath, new Quality(LOSSLESS_DPI, null));
+    }
+
+    /**
+     * Сжатие под целевой размер. Если документ в основном состоит из картинок и их замена по оценке укладывается в цель,
+     * картинки пережимаются на месте, иначе страницы растеризуются с подобранными DPI и качеством. Если результат всё же
+     * вышел больше цели(оценка ошиблась), делается один повторный проход растеризацией на ступень ниже
+     */
+    public File compressToTargetSize(File inputFile, String outputFilePath, long targetBytes) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        long sourceBytes = inputFile.length();
+        long plannedBytes = (long) (targetBytes * TARGET_SAFETY_MARGIN);
+        if (sourceBytes <= targetBytes) {
+            Files.copy(inputFile.toPath(), Paths.get(outputFilePath), StandardCopyOption.REPLACE_EXISTING);
+            return new File(outputFilePath);
+        }
+
+        Quality imageQuality = chooseImageQuality(inputFile, sourceBytes, plannedBytes);
+        File result;
+        if (imageQuality != null) {
+            result = downsampleImages(inputFile, outputFilePath, imageQuality);
+            if (result.length() <= targetBytes) {
+                log.info("Сжатие {} заменой картинок {}: {} -> {} байт за {} мс", inputFile.getName(), imageQuality,
+                        sourceBytes, result.length(), System.currentTimeMillis() - startedAt);
+                return result;
+            }
+            log.warn("Замена картинок в {} дала {} байт при цели {}, растеризуем страницы",
+                    inputFile.getName(), result.length(), targetBytes);
+        }
+
+        int step = chooseRasterStep(inputFile, plannedBytes);
+        result = rasterize(inputFile, outputFilePath, QUALITY_STEPS.get(step));
+        if (result.length() > targetBytes && step + 1 < QUALITY_STEPS.size()) {
+            log.warn("Растеризация {} с {} дала {} байт при цели {}, повтор на ступень ниже",
+                    inputFile.getName(), QUALITY_STEPS.get(step), result.length(), targetBytes);
+            result = rasterize(inputFile, outputFilePath, QUALITY_STEPS.get(step + 1));
+        }
+        log.info("Сжатие {} растеризацией: {} -> {} байт за {} мс", inputFile.getName(), sourceBytes, result.length(),
+                System.currentTimeMillis() - startedAt);
+        return result;
+    }
 
-            for (int pageIndex = 0; pageIndex < originalDocument.getNumberOfPages(); pageIndex++) {
-                // Рендеринг страницы в изображение с увеличенным DPI
-                BufferedImage image = renderer.renderImageWithDPI(pageIndex, 150); // Измените DPI на 150
+    private File rasterize(File inputFile, String outputFilePath, Quality quality) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        BlockingQueue<PDDocument> idleSourceDocuments = new LinkedBlockingQueue<>();
+        List<PDDocument> openedSourceDocuments = Collections.synchronizedList(new ArrayList<>());
+        Deque<CompletableFuture<List<EncodedPage>>> inFlight = new ArrayDeque<>();
 
-                // Создание новой страницы в сжатом документе
-                PDPage page = new PDPage(originalDocument.getPage(pageIndex).getMediaBox());
-                compressedDocument.addPage(page);
+        try (PDDocument compressedDocument = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+            List<PDRectangle> mediaBoxes = readMediaBoxes(inputFile, idleSourceDocuments, openedSourceDocuments);
+            int pageCount = mediaBoxes.size();
 
-                // Масштабирование изображения под размер страницы
-                PDRectangle mediaBox = page.getMediaBox();
-                float pageWidth = mediaBox.getWidth();
-                float pageHeight = mediaBox.getHeight();
+            int nextPage = 0;
+            int pagesInFlight = 0;
+            while (nextPage < pageCount || !inFlight.isEmpty()) {
+                // окно: пока готовые страницы не дописаны в результат, новые диапазоны не запускаются
+                while (nextPage < pageCount && pagesInFlight < maxPagesInFlight) {
+                    int fromPage = nextPage;
+                    int toPage = Math.min(pageCount, fromPage + pagesPerTask);
+                    inFlight.add(CompletableFuture.supplyAsync(
+                            () -> renderRange(inputFile, fromPage, toPage, quality, idleSourceDocuments, openedSourceDocuments),
+                            renderPool));
+                    pagesInFlight += toPage - fromPage;
+                    nextPage = toPage;
+                }
 
-                // Рисование изображения на странице
-                try (PDPageContentStream contentStream = new PDPageContentStream(compressedDocument, page)) {
-                    contentStream.drawImage(LosslessFactory.createFromImage(compressedDocument, image), 0, 0, pageWidth, pageHeight);
+                List<EncodedPage> renderedPages = inFlight.poll().join();
+                for (EncodedPage renderedPage : renderedPages) {
+                    appendPage(compressedDocument, renderedPage, mediaBoxes.get(renderedPage.pageIndex()));
                 }
+                pagesInFlight -= renderedPages.size();
             }
 
             compressedDocument.save(outputFilePath);
-            compressedDocument.close();
+            log.info("Растеризация {} с {}: {} страниц за {} мс, потоков {}", inputFile.getName(), quality, pageCount,
+                    System.currentTimeMillis() - startedAt, renderPool.getParallelism());
             return new File(outputFilePath);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw e;
+        } finally {
+            // копии исходника закрываются только после того, как все запущенные диапазоны закончили с ними работать
+            inFlight.forEach(future -> future.handle((pages, error) -> null).join());
+            closeAll(openedSourceDocuments);
         }
+    }
 
+    private List<PDRectangle> readMediaBoxes(
+            File inputFile,
+            BlockingQueue<PDDocument> idleSourceDocuments,
+            List<PDDocument> openedSourceDocuments
+    ) throws IOException {
+        PDDocument sourceDocument = openSourceDocument(inputFile, openedSourceDocuments);
+        List<PDRectangle> mediaBoxes = new ArrayList<>(sourceDocument.getNumberOfPages());
+        for (PDPage page : sourceDocument.getPages()) {
+            mediaBoxes.add(page.getMediaBox());
+        }
+        idleSourceDocuments.add(sourceDocument);
+        return mediaBoxes;
     }
 
+    /**
+     * Рендер страниц [fromPage, toPage) на копии исходника, свободной в данный момент(или новой, если все заняты)
+     */
+    private List<EncodedPage> renderRange(
+            File inputFile,
+            int fromPage,
+            int toPage,
+            Quality quality,
+            BlockingQueue<PDDocument> idleSourceDocuments,
+            List<PDDocument> openedSourceDocuments
+    ) {
+        PDDocument sourceDocument = idleSourceDocuments.poll();
+        try {
+            if (sourceDocument == null) {
+                sourceDocument = openSourceDocument(inputFile, openedSourceDocuments);
+            }
+            PDFRenderer renderer = new PDFRenderer(sourceDocument);
+            List<EncodedPage> pages = new ArrayList<>(toPage - fromPage);
+            for (int pageIndex = fromPage; pageIndex < toPage; pageIndex++) {
+                BufferedImage image = renderer.renderImageWithDPI(pageIndex, quality.dpi(), ImageType.RGB);
+                pages.add(quality.jpegQuality() == null
+                        ? new EncodedPage(pageIndex, image.getWidth(), image.getHeight(), COSName.FLATE_DECODE, deflateRgb(image))
+                        : new EncodedPage(pageIndex, image.getWidth(), image.getHeight(), COSName.DCT_DECODE,
+                                encodeJpeg(image, quality.jpegQuality())));
+            }
+            return pages;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (sourceDocument != null) {
+                idleSourceDocuments.add(sourceDocument);
+            }
+        }
+    }
+
+    private PDDocument openSourceDocument(File inputFile, List<PDDocument> openedSourceDocuments) throws IOException {
+        PDDocument sourceDocument = PDDocument.load(inputFile, MemoryUsageSetting.setupTempFileOnly());
+        openedSourceDocuments.add(sourceDocument);
+        return sourceDocument;
+    }
+
+    /**
+     * То же, что делает LosslessFactory, но в потоке пула: пиксели построчно в RGB и deflate
+     */
+    private byte[] deflateRgb(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(width * height / 4);
+        int[] rowPixels = new int[width];
+        byte[] rowBytes = new byte[width * 3];
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(output, new Deflater(Deflater.DEFAULT_COMPRESSION), 64 * 1024)) {
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, rowPixels, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int rgb = rowPixels[x];
+                    rowBytes[x * 3] = (byte) (rgb >> 16);
+                    rowBytes[x * 3 + 1] = (byte) (rgb >> 8);
+                    rowBytes[x * 3 + 2] = (byte) rgb;
+                }
+                deflater.write(rowBytes);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private void appendPage(PDDocument compressedDocument, EncodedPage renderedPage, PDRectangle mediaBox) throws IOException {
+        // Создание новой страницы в сжатом документе
+        PDPage page = new PDPage(mediaBox);
+        compressedDocument.addPage(page);
 
+        PDImageXObject image = new PDImageXObject(compressedDocument, new ByteArrayInputStream(renderedPage.data()),
+                renderedPage.filter(), renderedPage.width(), renderedPage.height(), 8, PDDeviceRGB.INSTANCE);
+
+        // Рисование изображения на странице с масштабированием под её размер
+        try (PDPageContentStream contentStream = new PDPageContentStream(compressedDocument, page)) {
+            contentStream.drawImage(image, 0, 0, mediaBox.getWidth(), mediaBox.getHeight());
+        }
+    }
 
+    /**
+     * Ступень растеризации по пробным страницам: каждая рендерится один раз в максимальном DPI, для каждой ступени
+     * уменьшается и кодируется в jpeg, средний размер страницы умножается на их число
+     */
+    private int chooseRasterStep(File inputFile, long plannedBytes) throws IOException {
+        int maxDpi = QUALITY_STEPS.get(0).dpi();
+        try (PDDocument document = PDDocument.load(inputFile, MemoryUsageSetting.setupTempFileOnly())) {
+            int pageCount = document.getNumberOfPages();
+            int samples = Math.min(SAMPLE_PAGES, pageCount);
+            long[] sampleBytesPerStep = new long[QUALITY_STEPS.size()];
+            PDFRenderer renderer = new PDFRenderer(document);
+            for (int sample = 0; sample < samples; sample++) {
+                int pageIndex = (int) ((sample + 0.5) * pageCount / samples);
+                BufferedImage page = renderer.renderImageWithDPI(pageIndex, maxDpi, ImageType.RGB);
+                for (int step = 0; step < QUALITY_STEPS.size(); step++) {
+                    Quality quality = QUALITY_STEPS.get(step);
+                    BufferedImage scaled = scale(page, (double) quality.dpi() / maxDpi, BufferedImage.TYPE_INT_RGB);
+                    sampleBytesPerStep[step] += encodeJpeg(scaled, quality.jpegQuality()).length;
+                }
+            }
+
+            for (int step = 0; step < QUALITY_STEPS.size(); step++) {
+                long estimatedBytes = (sampleBytesPerStep[step] / Math.max(1, samples) + PAGE_OVERHEAD_BYTES) * pageCount;
+                if (estimatedBytes <= plannedBytes) {
+                    log.info("Для {} выбрана растеризация {}, оценка {} байт", inputFile.getName(), QUALITY_STEPS.get(step), estimatedBytes);
+                    return step;
+                }
+            }
+            return QUALITY_STEPS.size() - 1;
+        }
+    }
+
+    /**
+     * Параметры замены картинок или null, если документ не состоит в основном из картинок или замена не уложится в цель.
+     * Доля картинок считается по длинам их потоков без декодирования, эффект замены - по нескольким самым тяжелым картинкам
+     */
+    private Quality chooseImageQuality(File inputFile, long sourceBytes, long plannedBytes) throws IOException {
+        try (PDDocument document = PDDocument.load(inputFile, MemoryUsageSetting.setupTempFileOnly())) {
+            // картинки, которые не будут пережиматься(маски, прозрачность, мелкие), остаются в несжимаемой части
+            List<ImageUsage> images = collectImages(document).stream()
+                    .filter(imageUsage -> isRecompressible(imageUsage.image()))
+                    .toList();
+            long imageBytes = images.stream().mapToLong(ImageUsage::streamLength).sum();
+            if (imageBytes < sourceBytes * IMAGE_HEAVY_SHARE) {
+                return null;
+            }
+            long otherBytes = sourceBytes - imageBytes;
+
+            // стратифицированная выборка: картинки по размеру делятся на группы, от каждой берётся средняя,
+            // её коэффициент сжатия применяется ко всему объему группы
+            List<ImageUsage> sortedImages = images.stream()
+                    .sorted(Comparator.comparingLong(ImageUsage::streamLength))
+                    .toList();
+            int groups = Math.min(SAMPLE_IMAGES, sortedImages.size());
+            // образцы декодируются по одному: картинка прогоняется по всем ступеням и сразу отпускается,
+            // в памяти одновременно только одна декодированная страница скана
+            long[] estimatedBytesPerStep = new long[QUALITY_STEPS.size()];
+            Arrays.fill(estimatedBytesPerStep, otherBytes);
+            for (int group = 0; group < groups; group++) {
+                int fromIndex = group * sortedImages.size() / groups;
+                int toIndex = (group + 1) * sortedImages.size() / groups;
+                long groupBytes = 0;
+                for (int i = fromIndex; i < toIndex; i++) {
+                    groupBytes += sortedImages.get(i).streamLength();
+                }
+                ImageUsage sampleImage = sortedImages.get((fromIndex + toIndex) / 2);
+                BufferedImage decodedSample = sampleImage.image().getImage();
+                for (int step = 0; step < QUALITY_STEPS.size(); step++) {
+                    byte[] recompressed = recompressImage(decodedSample, sampleImage.pageLongSide(), QUALITY_STEPS.get(step));
+                    long sampleBytes = recompressed != null
+                            ? Math.min(recompressed.length, sampleImage.streamLength())
+                            : sampleImage.streamLength();
+                    estimatedBytesPerStep[step] += (long) (groupBytes * ((double) sampleBytes / sampleImage.streamLength()));
+                }
+            }
+
+            for (int step = 0; step < QUALITY_STEPS.size(); step++) {
+                if (estimatedBytesPerStep[step] <= plannedBytes) {
+                    log.info("Для {} выбрана замена картинок {}, оценка {} байт",
+                            inputFile.getName(), QUALITY_STEPS.get(step), estimatedBytesPerStep[step]);
+                    return QUALITY_STEPS.get(step);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Заменяет встроенные картинки на уменьшенные до DPI ступени jpeg, текст и векторная графика не трогаются.
+     * Общая для нескольких страниц картинка пережимается один раз
+     */
+    private File downsampleImages(File inputFile, String outputFilePath, Quality quality) throws IOException {
+        try (PDDocument document = PDDocument.load(inputFile, MemoryUsageSetting.setupTempFileOnly())) {
+            Map<COSBase, PDImageXObject> replacements = new IdentityHashMap<>();
+            Set<COSBase> visitedForms = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (PDPage page : document.getPages()) {
+                replaceImages(document, page.getResources(), pageLongSide(page), quality, replacements, visitedForms);
+            }
+            document.save(outputFilePath);
+            return new File(outputFilePath);
+        }
+    }
+
+    private void replaceImages(
+            PDDocument document,
+            PDResources resources,
+            float pageLongSide,
+            Quality quality,
+            Map<COSBase, PDImageXObject> replacements,
+            Set<COSBase> visitedForms
+    ) throws IOException {
+        if (resources == null) {
+            return;
+        }
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xObject = resources.getXObject(name);
+            if (xObject instanceof PDImageXObject image) {
+                PDImageXObject replacement = replacements.get(image.getCOSObject());
+                if (replacement == null) {
+                    replacement = recompressImageObject(document, image, pageLongSide, quality);
+                    replacements.put(image.getCOSObject(), replacement);
+                }
+                if (replacement != image) {
+                    resources.put(name, replacement);
+                }
+            } else if (xObject instanceof PDFormXObject form && visitedForms.add(form.getCOSObject())) {
+                replaceImages(document, form.getResources(), pageLongSide, quality, replacements, visitedForms);
+            }
+        }
+    }
+
+    /**
+     * Пережатая картинка или исходная, если пережимать её не нужно или это не уменьшит размер
+     */
+    private PDImageXObject recompressImageObject(PDDocument document, PDImageXObject image, float pageLongSide, Quality quality)
+            throws IOException {
+        long streamLength = image.getCOSObject().getLength();
+        if (!isRecompressible(image)) {
+            return image;
+        }
+        BufferedImage decoded = image.getImage();
+        byte[] recompressed = recompressImage(decoded, pageLongSide, quality);
+        if (recompressed == null || recompressed.length >= streamLength) {
+            return image;
+        }
+        boolean gray = decoded.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        double scale = imageScale(decoded, pageLongSide, quality);
+        return new PDImageXObject(document, new ByteArrayInputStream(recompressed), COSName.DCT_DECODE,
+                scaledSize(decoded.getWidth(), scale), scaledSize(decoded.getHeight(), scale), 8,
+                gray ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE);
+    }
+
+    /**
+     * Пережимаются только непрозрачные картинки без масок заметного размера, решение принимается без декодирования
+     */
+    private boolean isRecompressible(PDImageXObject image) {
+        return !image.isStencil()
+                && image.getBitsPerComponent() != 1
+                && image.getCOSObject().getLength() >= MIN_IMAGE_BYTES_TO_RECOMPRESS
+                && image.getCOSObject().getItem(COSName.SMASK) == null
+                && image.getCOSObject().getItem(COSName.MASK) == null;
+    }
+
+    /**
+     * jpeg картинки, уменьшенной до DPI ступени относительно страницы, или null для картинок с прозрачностью и мелких
+     */
+    private byte[] recompressImage(BufferedImage decoded, float pageLongSide, Quality quality) throws IOException {
+        if (decoded.getColorModel().hasAlpha()
+                || Math.max(decoded.getWidth(), decoded.getHeight()) < MIN_IMAGE_SIDE_TO_RECOMPRESS) {
+            return null;
+        }
+        int imageType = decoded.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        return encodeJpeg(scale(decoded, imageScale(decoded, pageLongSide, quality), imageType), quality.jpegQuality());
+    }
+
+    /**
+     * Во сколько раз уменьшить картинку, чтобы растянутая на всю страницу она имела не больше dpi точек на дюйм
+     */
+    private double imageScale(BufferedImage image, float pageLongSide, Quality quality) {
+        double maxPixels = quality.dpi() * pageLongSide / 72.0;
+        return Math.min(1.0, maxPixels / Math.max(image.getWidth(), image.getHeight()));
+    }
+
+    private List<ImageUsage> collectImages(PDDocument document) throws IOException {
+        List<ImageUsage> images = new ArrayList<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PDPage page : document.getPages()) {
+            collectImages(page.getResources(), pageLongSide(page), images, visited);
+        }
+        return images;
+    }
+
+    private void collectImages(PDResources resources, float pageLongSide, List<ImageUsage> images, Set<COSBase> visited)
+            throws IOException {
+        if (resources == null) {
+            return;
+        }
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xObject = resources.getXObject(name);
+            if (!visited.add(xObject.getCOSObject())) {
+                continue;
+            }
+            if (xObject instanceof PDImageXObject image) {
+                images.add(new ImageUsage(image, pageLongSide, image.getCOSObject().getLength()));
+            } else if (xObject instanceof PDFormXObject form) {
+                collectImages(form.getResources(), pageLongSide, images, visited);
+            }
+        }
+    }
+
+    private float pageLongSide(PDPage page) {
+        PDRectangle mediaBox = page.getMediaBox();
+        return Math.max(mediaBox.getWidth(), mediaBox.getHeight());
+    }
+
+    private BufferedImage scale(BufferedImage source, double scale, int imageType) {
+        int width = scaledSize(source.getWidth(), scale);
+        int height = scaledSize(source.getHeight(), scale);
+        if (source.getType() == imageType && width == source.getWidth() && height == source.getHeight()) {
+            return source;
+        }
+        BufferedImage scaled = new BufferedImage(width, height, imageType);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private int scaledSize(int size, double scale) {
+        return Math.max(1, (int) Math.round(size * scale));
+    }
+
+    private byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        writeParam.setCompressionQuality(quality);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    private void closeAll(List<PDDocument> documents) {
+        for (PDDocument document : documents) {
+            try {
+                document.close();
+            } catch (IOException e) {
+                log.warn("Не удалось закрыть исходный pdf: {}", e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renderPool.shutdownNow();
+    }
 }
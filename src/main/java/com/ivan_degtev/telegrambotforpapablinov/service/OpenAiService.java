@@ -1,5 +1,6 @@
 package com.ivan_degtev.telegrambotforpapablinov.service;
 
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.dto.mapping.WebhookPayloadDto;
 import org.springframework.stereotype.Service;
 
@@ -9,7 +10,7 @@ public interface OpenAiService {
      /**
       * Обычный запрос к ллм текстом , запоминается айди юзера для истории и айди чата для верной отправки в чат(если он есть)
       */
-     void getAnswerFromLlm(String chatId, String fromId, String question, Long replayMessageId);
+     void getAnswerFromLlm(String chatId, UserSessionState session, String question, Long replayMessageId);
 
 //     /**
 //      *
@@ -6,8 +6,9 @@ import org.springframework.stereotype.Service;
 public interface TelegramService {
 
     /**
-     * Начальное получение всех данных из телеграмма по вебхуку
+     * Начальное получение всех данных из телеграмма по вебхуку, сама обработка выполняется асинхронно
      * @param payload
+     * @return false, если апдейт не принят в обработку(очередь переполнена) и телеграм должен прислать его повторно
      */
-    void getNewMessagesFromWebhook(String payload);
+    boolean getNewMessagesFromWebhook(String payload);
 }
@@ -1,5 +1,6 @@
 package com.ivan_degtev.telegrambotforpapablinov.service;
 
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.dto.mapping.WebhookPayloadDto;
 import org.springframework.stereotype.Service;
 
@@ -15,12 +16,12 @@ public interface TriggersForBotService {
     /**
      * Метод для поиска и обработки команд, если они есть
      */
-    boolean searchAndHandleCommand(WebhookPayloadDto payload);
+    boolean searchAndHandleCommand(WebhookPayloadDto payload, UserSessionState session);
 
     /**
      * Метод для проверки есть ли в тексте комадна для поиска @search
      */
-    void isSearchRequest(String fromId, String textMessage);
+    void isSearchRequest(UserSessionState session, String textMessage);
     /**
      * Утилитный метод нужен для определения типа откуда сообщения для последующей разной обработки(на сообщения из групп бот отвечает, из приватных чатов
      * - просто пишет в чат, без реплаев)
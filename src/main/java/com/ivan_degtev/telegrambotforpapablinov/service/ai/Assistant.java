@@ -2,23 +2,40 @@ package com.ivan_degtev.telegrambotforpapablinov.service.ai;
 
 import dev.langchain4j.service.MemoryId;
 import dev.langchain4j.service.SystemMessage;
+import dev.langchain4j.service.TokenStream;
 import dev.langchain4j.service.UserMessage;
 import dev.langchain4j.service.V;
 
 public interface Assistant {
 
-    @SystemMessage("""
+    String SYSTEM_MESSAGE = """
             Вы внутренний ассистент компании Папа Блинов. Твоя задача отвечать на общие вопросы, вопросы связанные с компанией
             и предоставлять данные из внутренней базы данных, когда я запрашивают.
+            Данные о компании берутся из фрагментов внутренних документов, приложенных к вопросу. Если в них нет ответа,
+            так и скажи, не придумывай.
             При  общении всегда запоминай айди чата клиента {{currentChatId}}
-            """)
-    @UserMessage("""
+            """;
+    String USER_MESSAGE = """
             Вопрос клиента: {{userMessage}}
-            """)
+            """;
+
+    @SystemMessage(SYSTEM_MESSAGE)
+    @UserMessage(USER_MESSAGE)
     String chat(
             @MemoryId String memoryId,
             @V("currentChatId") String currentChatId,
             @V("userMessage")String userMessage
     );
 
+    /**
+     * То же, что chat, но ответ приходит частями по мере генерации
+     */
+    @SystemMessage(SYSTEM_MESSAGE)
+    @UserMessage(USER_MESSAGE)
+    TokenStream chatStream(
+            @MemoryId String memoryId,
+            @V("currentChatId") String currentChatId,
+            @V("userMessage") String userMessage
+    );
+
 }
@@ -0,0 +1,180 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import com.ivan_degtev.telegrambotforpapablinov.config.ChatMemoryWindowProperties;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiChatModelName;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Сворачивание вытесненных из окна памяти сообщений в короткую сводку. Старая сводка и вытесненные реплики
+ * отправляются модели одним запросом, ответ ограничен chat-memory.window.summary.max-tokens.
+ * Сворачивание идёт в своих потоках, запрос пользователя его не ждёт - fold delay в метриках показывает,
+ * через сколько после вытеснения сводка попадает в окно
+ */
+@Service
+@Slf4j
+public class ChatHistorySummarizer {
+
+    private final static String INSTRUCTION = """
+            Ты ведешь краткую сводку переписки сотрудника с внутренним ассистентом компании Папа Блинов.
+            Обнови сводку с учетом новых реплик: сохрани факты о пользователе, его вопросы, принятые решения,
+            названия документов и договоренности. Пиши по-русски, сжато, без вступлений.
+            """;
+
+    private final static int FOLD_THREADS = 2;
+
+    private final ChatLanguageModel summaryModel;
+    private final ExecutorService foldExecutor;
+
+    private final AtomicLong summaries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong summarizedMessages = new AtomicLong();
+    private final AtomicLong evictedTokens = new AtomicLong();
+    private final AtomicLong summaryTotalMillis = new AtomicLong();
+    private final AtomicLong pendingFolds = new AtomicLong();
+    private final AtomicLong folds = new AtomicLong();
+    private final AtomicLong discardedFolds = new AtomicLong();
+    private final AtomicLong foldDelayTotalMillis = new AtomicLong();
+    private final AtomicLong lastFoldDelayMillis = new AtomicLong();
+
+    public ChatHistorySummarizer(
+            @Value("${openai.token}") String openAiToken,
+            ChatMemoryWindowProperties properties
+    ) {
+        this.summaryModel = OpenAiChatModel.builder()
+                .apiKey(openAiToken)
+                .modelName(OpenAiChatModelName.GPT_3_5_TURBO)
+                .maxTokens(properties.getSummary().getMaxTokens())
+                .temperature(0.2)
+                .build();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.foldExecutor = Executors.newFixedThreadPool(FOLD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "chat-summary-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Запуск сворачивания вне потока запроса
+     */
+    public void submitFold(Runnable fold) {
+        pendingFolds.incrementAndGet();
+        foldExecutor.execute(() -> {
+            try {
+                fold.run();
+            } finally {
+                pendingFolds.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @param delayNanos от вытеснения первого сообщения до записи сводки в окно
+     * @param applied false - окно очистили, пока строилась сводка, или модель не ответила
+     */
+    public void recordFold(long delayNanos, boolean applied) {
+        if (!applied) {
+            discardedFolds.incrementAndGet();
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(delayNanos);
+        folds.incrementAndGet();
+        foldDelayTotalMillis.addAndGet(millis);
+        lastFoldDelayMillis.set(millis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        foldExecutor.shutdownNow();
+    }
+
+    /**
+     * @param previousSummary текущая сводка, null если её ещё нет
+     * @param evicted сообщения, вытесненные из окна, в порядке разговора
+     * @param evictedTokenCount сколько токенов занимали вытесненные сообщения
+     * @return новая сводка, пустой результат если модель не ответила - тогда остаётся прежняя сводка
+     */
+    public Optional<String> summarize(String previousSummary, List<ChatMessage> evicted, int evictedTokenCount) {
+        evictedTokens.addAndGet(evictedTokenCount);
+        StringBuilder request = new StringBuilder();
+        if (previousSummary != null) {
+            request.append("Текущая сводка:\n").append(previousSummary).append("\n\n");
+        }
+        request.append("Новые реплики:\n");
+        evicted.forEach(message -> request.append(toLine(message)).append('\n'));
+
+        long startNanos = System.nanoTime();
+        try {
+            String summary = summaryModel.generate(SystemMessage.from(INSTRUCTION), UserMessage.from(request.toString()))
+                    .content()
+                    .text();
+            summaries.incrementAndGet();
+            summarizedMessages.addAndGet(evicted.size());
+            return Optional.ofNullable(summary).map(String::strip).filter(text -> !text.isEmpty());
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            log.warn("Не удалось обновить сводку разговора, {} сообщений вытеснено без сводки: {}",
+                    evicted.size(), e.getMessage());
+            return Optional.empty();
+        } finally {
+            summaryTotalMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    private String toLine(ChatMessage message) {
+        if (message instanceof UserMessage userMessage) {
+            return "Пользователь: " + userMessage.contents().stream()
+                    .filter(TextContent.class::isInstance)
+                    .map(content -> ((TextContent) content).text())
+                    .collect(Collectors.joining(" "));
+        } else if (message instanceof AiMessage aiMessage) {
+            return aiMessage.hasToolExecutionRequests()
+                    ? "Ассистент вызвал инструменты: " + aiMessage.toolExecutionRequests().stream()
+                            .map(request -> request.name() + "(" + request.arguments() + ")")
+                            .collect(Collectors.joining(", "))
+                    : "Ассистент: " + aiMessage.text();
+        } else if (message instanceof ToolExecutionResultMessage resultMessage) {
+            return "Результат " + resultMessage.toolName() + ": " + resultMessage.text();
+        } else if (message instanceof SystemMessage systemMessage) {
+            return systemMessage.text();
+        }
+        return "";
+    }
+
+    public Map<String, Object> getStats() {
+        long summaryCount = summaries.get();
+        long foldCount = folds.get();
+        return Map.of(
+                "summaries", summaryCount,
+                "failures", failures.get(),
+                "summarizedMessages", summarizedMessages.get(),
+                "evictedTokens", evictedTokens.get(),
+                "avgSummaryMs", summaryCount + failures.get() == 0 ? 0 : summaryTotalMillis.get() / (summaryCount + failures.get()),
+                "pendingFolds", pendingFolds.get(),
+                "discardedFolds", discardedFolds.get(),
+                "avgFoldDelayMs", foldCount == 0 ? 0 : foldDelayTotalMillis.get() / foldCount,
+                "lastFoldDelayMs", lastFoldDelayMillis.get()
+        );
+    }
+}
@@ -0,0 +1,93 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Источник контекста для ассистента langchain4j: фрагменты документов из app/files, ближайшие к вопросу,
+ * берутся из локального индекса DocumentSearchService. Пока индекс строится, контекст пустой
+ */
+@Service
+@Slf4j
+public class DocumentContentRetriever implements ContentRetriever {
+
+    public final static String FILE_NAME_METADATA = "file_name";
+    /**
+     * Заголовок, после которого найденные фрагменты дописываются к вопросу пользователя
+     */
+    public final static String CONTEXT_HEADER = "Фрагменты внутренних документов компании для ответа:";
+
+    private final DocumentSearchService documentSearchService;
+    private final int maxResults;
+    private final double minScore;
+
+    private final AtomicLong retrievals = new AtomicLong();
+    private final AtomicLong emptyRetrievals = new AtomicLong();
+    private final AtomicLong retrievedSegments = new AtomicLong();
+
+    public DocumentContentRetriever(
+            DocumentSearchService documentSearchService,
+            @Value("${files.rag.max-results:5}") int maxResults,
+            @Value("${files.rag.min-score:0.55}") double minScore
+    ) {
+        this.documentSearchService = documentSearchService;
+        this.maxResults = maxResults;
+        this.minScore = minScore;
+    }
+
+    @Override
+    public List<Content> retrieve(Query query) {
+        if (!documentSearchService.isReady()) {
+            return List.of();
+        }
+        List<DocumentSearchService.SegmentMatch> matches = documentSearchService.searchSegments(query.text(), maxResults, minScore);
+        retrievals.incrementAndGet();
+        retrievedSegments.addAndGet(matches.size());
+        if (matches.isEmpty()) {
+            emptyRetrievals.incrementAndGet();
+        }
+        log.info("Контекст для вопроса из {} фрагментов: {}", matches.size(),
+                matches.stream().map(DocumentSearchService.SegmentMatch::fileName).distinct().toList());
+        return matches.stream()
+                .map(match -> Content.from(TextSegment.from(match.text(), Metadata.from(FILE_NAME_METADATA, match.fileName()))))
+                .toList();
+    }
+
+    /**
+     * Вопрос пользователя без подставленных фрагментов. Фрагменты нужны только для ответа на сам вопрос,
+     * в истории разговора остаётся один вопрос. Остальные сообщения возвращаются как есть
+     */
+    public static ChatMessage withoutRetrievedContext(ChatMessage message) {
+        if (!(message instanceof UserMessage userMessage) || !userMessage.hasSingleText()) {
+            return message;
+        }
+        String text = userMessage.singleText();
+        int contextStart = text.indexOf(CONTEXT_HEADER);
+        if (contextStart < 0) {
+            return message;
+        }
+        String question = text.substring(0, contextStart).strip();
+        return userMessage.name() == null ? UserMessage.from(question) : UserMessage.from(userMessage.name(), question);
+    }
+
+    public Map<String, Object> getStats() {
+        long retrievalCount = retrievals.get();
+        return Map.of(
+                "retrievals", retrievalCount,
+                "emptyRetrievals", emptyRetrievals.get(),
+                "avgSegments", retrievalCount == 0 ? 0 : (double) retrievedSegments.get() / retrievalCount
+        );
+    }
+}
@@ -0,0 +1,441 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import com.ivan_degtev.telegrambotforpapablinov.component.FileCatalog;
+import com.ivan_degtev.telegrambotforpapablinov.mapper.DocumentTextExtractor;
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Локальный поиск документов компании для SEARCH запросов вместо run ассистента с file_search. Текст каждого файла
+ * из app/files режется на фрагменты, фрагменты и имя файла эмбеддятся локальной моделью all-minilm-l6-v2.
+ * Векторы нормализованы, поэтому близость - просто скалярное произведение, оценка файла - лучший из его фрагментов.
+ * Индекс хранится на диске(index-path) вместе с текстом фрагментов, размером и датой изменения файлов: после перезапуска
+ * переиндексируются только изменившиеся файлы. Индексация идёт в фоне и подхватывает изменения FileCatalog.
+ * Тексты фрагментов отдаются в контекст обычных вопросов ассистенту langchain4j(DocumentContentRetriever)
+ */
+@Service
+@Slf4j
+public class DocumentSearchService implements FileCatalog.Listener {
+
+    private final static int INDEX_FORMAT_VERSION = 2;
+    private final static int MAX_SEGMENT_CHARS = 600;
+    private final static int SEGMENT_OVERLAP_CHARS = 60;
+    private final static Pattern WORD_CHARACTER = Pattern.compile("[\\p{L}\\p{N}]");
+
+    private final FileCatalog fileCatalog;
+    private final DocumentTextExtractor documentTextExtractor;
+    private final EmbeddingModel embeddingModel;
+    private final boolean enabled;
+    private final Path indexPath;
+    private final double minScore;
+    private final int maxSegmentsPerFile;
+
+    private final DocumentSplitter documentSplitter = DocumentSplitters.recursive(MAX_SEGMENT_CHARS, SEGMENT_OVERLAP_CHARS);
+    private final Map<String, IndexedDocument> documents = new ConcurrentHashMap<>();
+    private final ExecutorService indexer;
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile boolean ready;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong searchTotalMillis = new AtomicLong();
+    private final AtomicLong segmentSearches = new AtomicLong();
+    private final AtomicLong segmentSearchTotalMillis = new AtomicLong();
+    private final AtomicLong indexedFiles = new AtomicLong();
+    private final AtomicLong indexingTotalMillis = new AtomicLong();
+
+    /**
+     * @param vectors - нормализованные векторы имени файла и фрагментов его текста
+     * @param texts - имя файла без расширения и тексты фрагментов, в том же порядке, что и vectors
+     */
+    private record IndexedDocument(long size, long modified, float[][] vectors, String[] texts) {
+    }
+
+    public record DocumentMatch(String fileName, double score) {
+    }
+
+    public record SegmentMatch(String fileName, String text, double score) {
+    }
+
+    public DocumentSearchService(
+            FileCatalog fileCatalog,
+            DocumentTextExtractor documentTextExtractor,
+            EmbeddingModel embeddingModel,
+            @Value("${files.vector-index.enabled:true}") boolean enabled,
+            @Value("${files.vector-index.path:app/index/documents.idx}") String indexPath,
+            @Value("${files.vector-index.min-score:0.5}") double minScore,
+            @Value("${files.vector-index.max-segments-per-file:300}") int maxSegmentsPerFile
+    ) {
+        this.fileCatalog = fileCatalog;
+        this.documentTextExtractor = documentTextExtractor;
+        this.embeddingModel = embeddingModel;
+        this.enabled = enabled;
+        this.indexPath = Paths.get(indexPath);
+        this.minScore = minScore;
+        this.maxSegmentsPerFile = maxSegmentsPerFile;
+        this.indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "document-indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        loadIndex();
+        fileCatalog.addListener(this);
+
+        Set<String> catalogFiles = new HashSet<>();
+        for (Path file : fileCatalog.allFiles()) {
+            catalogFiles.add(file.getFileName().toString());
+            onFileChanged(file);
+        }
+        if (documents.keySet().retainAll(catalogFiles)) {
+            dirty.set(true);
+        }
+        submit(() -> {
+            ready = true;
+            log.info("Индекс документов готов, файлов: {}", documents.size());
+        });
+    }
+
+    /**
+     * Готов ли индекс отвечать - до окончания первой индексации SEARCH запросы идут к ассистенту как раньше
+     */
+    public boolean isReady() {
+        return enabled && ready && !documents.isEmpty();
+    }
+
+    /**
+     * До limit файлов, наиболее близких к запросу, по убыванию близости
+     */
+    public List<DocumentMatch> search(String query, int limit) {
+        long startedAt = System.currentTimeMillis();
+        float[] queryVector = normalize(embeddingModel.embed(query).content());
+
+        List<DocumentMatch> matches = new ArrayList<>();
+        for (Map.Entry<String, IndexedDocument> document : documents.entrySet()) {
+            double best = -1;
+            for (float[] vector : document.getValue().vectors()) {
+                best = Math.max(best, dot(queryVector, vector));
+            }
+            if (best >= minScore) {
+                matches.add(new DocumentMatch(document.getKey(), best));
+            }
+        }
+        List<DocumentMatch> result = matches.stream()
+                .sorted(Comparator.comparingDouble(DocumentMatch::score).reversed())
+                .limit(limit)
+                .toList();
+
+        searches.incrementAndGet();
+        searchTotalMillis.addAndGet(System.currentTimeMillis() - startedAt);
+        log.info("Локальный поиск документов по запросу '{}': {}", query, result);
+        return result;
+    }
+
+    /**
+     * До maxResults фрагментов текста документов, наиболее близких к запросу, по убыванию близости.
+     * Вектор имени файла здесь не участвует - в контекст ответа нужен только текст
+     */
+    public List<SegmentMatch> searchSegments(String query, int maxResults, double minSegmentScore) {
+        long startedAt = System.currentTimeMillis();
+        float[] queryVector = normalize(embeddingModel.embed(query).content());
+
+        PriorityQueue<SegmentMatch> best = new PriorityQueue<>(Comparator.comparingDouble(SegmentMatch::score));
+        for (Map.Entry<String, IndexedDocument> document : documents.entrySet()) {
+            float[][] vectors = document.getValue().vectors();
+            for (int i = 1; i < vectors.length; i++) {
+                double score = dot(queryVector, vectors[i]);
+                if (score < minSegmentScore || (best.size() == maxResults && score <= best.peek().score())) {
+                    continue;
+                }
+                best.add(new SegmentMatch(document.getKey(), document.getValue().texts()[i], score));
+                if (best.size() > maxResults) {
+                    best.poll();
+                }
+            }
+        }
+        List<SegmentMatch> result = best.stream()
+                .sorted(Comparator.comparingDouble(SegmentMatch::score).reversed())
+                .toList();
+
+        segmentSearches.incrementAndGet();
+        segmentSearchTotalMillis.addAndGet(System.currentTimeMillis() - startedAt);
+        return result;
+    }
+
+    @Override
+    public void onFileChanged(Path file) {
+        submit(() -> indexFile(file));
+    }
+
+    @Override
+    public void onFileRemoved(Path file) {
+        submit(() -> {
+            if (documents.remove(file.getFileName().toString()) != null) {
+                dirty.set(true);
+            }
+        });
+    }
+
+    private void indexFile(Path file) {
+        long size;
+        long modified;
+        try {
+            if (!Files.isRegularFile(file)) {
+                return;
+            }
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать атрибуты {}: {}", file.getFileName(), e.getMessage());
+            return;
+        }
+        String fileName = file.getFileName().toString();
+        IndexedDocument current = documents.get(fileName);
+        if (current != null && current.size() == size && current.modified() == modified) {
+            return;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        List<TextSegment> segments = new ArrayList<>();
+        int dot = fileName.lastIndexOf('.');
+        segments.add(TextSegment.from(dot > 0 ? fileName.substring(0, dot) : fileName));
+        String text = documentTextExtractor.extractText(file);
+        if (!text.isBlank()) {
+            documentSplitter.split(Document.from(text)).stream()
+                    .filter(segment -> WORD_CHARACTER.matcher(segment.text()).find())
+                    .limit(maxSegmentsPerFile)
+                    .forEach(segments::add);
+        }
+
+        List<Embedding> embeddings = embedSegments(fileName, segments);
+        if (embeddings.isEmpty()) {
+            return;
+        }
+        float[][] vectors = new float[embeddings.size()][];
+        String[] texts = new String[embeddings.size()];
+        for (int i = 0; i < embeddings.size(); i++) {
+            vectors[i] = normalize(embeddings.get(i));
+            texts[i] = segments.get(i).text();
+        }
+        documents.put(fileName, new IndexedDocument(size, modified, vectors, texts));
+        dirty.set(true);
+
+        indexedFiles.incrementAndGet();
+        long tookMillis = System.currentTimeMillis() - startedAt;
+        indexingTotalMillis.addAndGet(tookMillis);
+        log.info("Проиндексирован {}: фрагментов {}, {} мс", fileName, vectors.length, tookMillis);
+    }
+
+    /**
+     * Все фрагменты файла одним пакетом. Модель падает на отдельных фрагментах, из которых токенизатор ничего не извлёк,
+     * тогда фрагменты эмбеддятся по одному и сбойные удаляются из segments, чтобы тексты совпадали с векторами
+     */
+    private List<Embedding> embedSegments(String fileName, List<TextSegment> segments) {
+        try {
+            return embeddingModel.embedAll(segments).content();
+        } catch (RuntimeException e) {
+            log.warn("Пакетный эмбеддинг {} не удался, фрагменты обрабатываются по одному: {}", fileName, e.getMessage());
+        }
+        List<Embedding> embeddings = new ArrayList<>();
+        Iterator<TextSegment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            TextSegment segment = iterator.next();
+            try {
+                embeddings.add(embeddingModel.embed(segment).content());
+            } catch (RuntimeException e) {
+                iterator.remove();
+                log.debug("Фрагмент {} пропущен: {}", fileName, e.getMessage());
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Все задачи индексации идут в один поток. Когда очередь пуста, изменения сбрасываются на диск одной записью
+     */
+    private void submit(Runnable task) {
+        pendingTasks.incrementAndGet();
+        indexer.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Ошибка индексации документов: {}", e.getMessage(), e);
+            } finally {
+                if (pendingTasks.decrementAndGet() == 0 && dirty.compareAndSet(true, false)) {
+                    saveIndex();
+                }
+            }
+        });
+    }
+
+    private void loadIndex() {
+        if (!Files.isRegularFile(indexPath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != INDEX_FORMAT_VERSION || in.readInt() != embeddingModel.dimension()) {
+                log.info("Индекс документов {} в старом формате, будет построен заново", indexPath);
+                return;
+            }
+            int documentCount = in.readInt();
+            Map<String, IndexedDocument> loaded = new HashMap<>(documentCount * 4 / 3 + 1);
+            for (int i = 0; i < documentCount; i++) {
+                String fileName = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                float[][] vectors = new float[in.readInt()][];
+                String[] texts = new String[vectors.length];
+                for (int v = 0; v < vectors.length; v++) {
+                    texts[v] = readText(in);
+                    vectors[v] = new float[in.readInt()];
+                    for (int d = 0; d < vectors[v].length; d++) {
+                        vectors[v][d] = in.readFloat();
+                    }
+                }
+                loaded.put(fileName, new IndexedDocument(size, modified, vectors, texts));
+            }
+            documents.putAll(loaded);
+            log.info("Загружен индекс документов {}, файлов: {}", indexPath, documents.size());
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать индекс документов {}, будет построен заново: {}", indexPath, e.getMessage());
+            documents.clear();
+        }
+    }
+
+    /**
+     * Запись во временный файл и атомарная замена, чтобы падение посреди записи не портило индекс
+     */
+    private void saveIndex() {
+        try {
+            Files.createDirectories(indexPath.toAbsolutePath().getParent());
+            Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            Map<String, IndexedDocument> snapshot = new HashMap<>(documents);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(INDEX_FORMAT_VERSION);
+                out.writeInt(embeddingModel.dimension());
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, IndexedDocument> document : snapshot.entrySet()) {
+                    out.writeUTF(document.getKey());
+                    out.writeLong(document.getValue().size());
+                    out.writeLong(document.getValue().modified());
+                    float[][] vectors = document.getValue().vectors();
+                    out.writeInt(vectors.length);
+                    for (int v = 0; v < vectors.length; v++) {
+                        float[] vector = vectors[v];
+                        writeText(out, document.getValue().texts()[v]);
+                        out.writeInt(vector.length);
+                        for (float value : vector) {
+                            out.writeFloat(value);
+                        }
+                    }
+                }
+            }
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Индекс документов сохранён в {}, файлов: {}", indexPath, snapshot.size());
+        } catch (IOException e) {
+            log.error("Не удалось сохранить индекс документов {}: {}", indexPath, e.getMessage());
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * writeUTF ограничен 64 КБ, фрагмент пишется длиной и байтами utf-8
+     */
+    private void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private String readText(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    private float[] normalize(Embedding embedding) {
+        float[] vector = embedding.vector();
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+        }
+        return normalized;
+    }
+
+    private double dot(float[] first, float[] second) {
+        double sum = 0;
+        for (int i = 0; i < first.length && i < second.length; i++) {
+            sum += first[i] * second[i];
+        }
+        return sum;
+    }
+
+    public Map<String, Object> getStats() {
+        long searchCount = searches.get();
+        long indexedCount = indexedFiles.get();
+        long segmentSearchCount = segmentSearches.get();
+        return Map.of(
+                "ready", isReady(),
+                "documents", documents.size(),
+                "segments", documents.values().stream().mapToInt(document -> document.vectors().length).sum(),
+                "pendingTasks", pendingTasks.get(),
+                "searches", searchCount,
+                "avgSearchMillis", searchCount == 0 ? 0 : (double) searchTotalMillis.get() / searchCount,
+                "segmentSearches", segmentSearchCount,
+                "avgSegmentSearchMillis", segmentSearchCount == 0 ? 0 : (double) segmentSearchTotalMillis.get() / segmentSearchCount,
+                "indexedFiles", indexedCount,
+                "avgIndexingMillis", indexedCount == 0 ? 0 : (double) indexingTotalMillis.get() / indexedCount
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        indexer.shutdownNow();
+    }
+}
@@ -0,0 +1,270 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import com.ivan_degtev.telegrambotforpapablinov.component.HttpConnectorRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Неблокирующий клиент к Assistants API open ai. Все методы возвращают Mono/Flux с сырым json ответа,
+ * разбор ответа остаётся в OpenAiMapper. Запрос уходит только при подписке.
+ */
+@Service
+@Slf4j
+public class OpenAiAssistantsClient {
+
+    private final WebClient webClient;
+
+    private final static String ASSISTANT_ID = "asst_nPqCeUlu5QPRx9OhhrRKmSLB";
+    private final static String CALL_COUNTER_KEY = "openai.upstream-calls";
+
+    private final AtomicLong totalCalls = new AtomicLong();
+    private final AtomicLong requestsCounted = new AtomicLong();
+    private final AtomicLong callsCounted = new AtomicLong();
+    private final AtomicInteger lastRequestCalls = new AtomicInteger();
+
+    public OpenAiAssistantsClient(
+            @Value("${openai.token}") String openAiToken,
+            WebClient.Builder webClient,
+            HttpConnectorRegistry httpConnectorRegistry
+    ) {
+        this.webClient = webClient
+                .baseUrl("https://api.openai.com")
+                .clientConnector(httpConnectorRegistry.connector("openai"))
+                .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
+                .defaultHeader("OpenAI-Beta", "assistants=v2")
+                .filter(this::countUpstreamCall)
+                .build();
+    }
+
+    /**
+     * Подключает счетчик запросов к open ai к цепочке одного вопроса: каждый http-запрос внутри цепочки увеличивает
+     * counter. Использование: mono.contextWrite(OpenAiAssistantsClient.countCallsInto(counter))
+     */
+    public static Function<Context, Context> countCallsInto(AtomicInteger counter) {
+        return context -> context.put(CALL_COUNTER_KEY, counter);
+    }
+
+    /**
+     * Фиксирует, сколько запросов к open ai понадобилось на один вопрос пользователя
+     */
+    public void recordRequestCalls(int calls) {
+        requestsCounted.incrementAndGet();
+        callsCounted.addAndGet(calls);
+        lastRequestCalls.set(calls);
+    }
+
+    private Mono<ClientResponse> countUpstreamCall(ClientRequest request, ExchangeFunction next) {
+        return Mono.deferContextual(context -> {
+            totalCalls.incrementAndGet();
+            context.<AtomicInteger>getOrEmpty(CALL_COUNTER_KEY).ifPresent(AtomicInteger::incrementAndGet);
+            return next.exchange(request);
+        });
+    }
+
+    public Map<String, Object> getStats() {
+        long requests = requestsCounted.get();
+        return Map.of(
+                "totalCalls", totalCalls.get(),
+                "requestsCounted", requests,
+                "lastRequestCalls", lastRequestCalls.get(),
+                "avgCallsPerRequest", requests == 0 ? 0.0 : (double) callsCounted.get() / requests
+        );
+    }
+
+    public String getAssistantId() {
+        return ASSISTANT_ID;
+    }
+
+    /**
+     * Треды
+     */
+    public Mono<String> createThread() {
+        return webClient.post()
+                .uri("/v1/threads")
+                .contentType(MediaType.APPLICATION_JSON)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("create thread", e));
+    }
+
+    public Mono<String> createThread(List<Map<String, String>> messages) {
+        return webClient.post()
+                .uri("/v1/threads")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("messages", messages))
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("create thread with messages", e));
+    }
+
+    public Mono<String> deleteThread(String threadId) {
+        return webClient.delete()
+                .uri("/v1/threads/{threadId}", threadId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("delete thread " + threadId, e));
+    }
+
+    /**
+     * Сообщения
+     */
+    public Mono<String> createMessage(String threadId, Map<String, String> message) {
+        return webClient.post()
+                .uri("/v1/threads/{threadId}/messages", threadId)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(message)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("create message in " + threadId, e));
+    }
+
+    public Mono<String> listMessages(String threadId) {
+        return webClient.get()
+                .uri("/v1/threads/{threadId}/messages", threadId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("list messages of " + threadId, e));
+    }
+
+    public Mono<String> getMessage(String threadId, String messageId) {
+        return webClient.get()
+                .uri("/v1/threads/{threadId}/messages/{messageId}", threadId, messageId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("get message " + messageId, e));
+    }
+
+    /**
+     * Запуски. Сообщение пользователя передается прямо в запросе run(additional_messages), для нового пользователя
+     * тред и run создаются одним запросом /v1/threads/runs
+     */
+    public Mono<String> createRun(String threadId, Map<String, String> message) {
+        return webClient.post()
+                .uri("/v1/threads/{threadId}/runs", threadId)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("assistant_id", ASSISTANT_ID, "additional_messages", List.of(message)))
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("create run in " + threadId, e));
+    }
+
+    /**
+     * Создает run с параметром stream=true и отдает поток server-sent events
+     */
+    public Flux<ServerSentEvent<String>> streamRun(String threadId, Map<String, String> message) {
+        return webClient.post()
+                .uri("/v1/threads/{threadId}/runs", threadId)
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(Map.of("assistant_id", ASSISTANT_ID, "additional_messages", List.of(message), "stream", true))
+                .retrieve()
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+                .doOnError(WebClientResponseException.class, e -> logError("stream run in " + threadId, e));
+    }
+
+    public Mono<String> createThreadAndRun(Map<String, String> message) {
+        return webClient.post()
+                .uri("/v1/threads/runs")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("assistant_id", ASSISTANT_ID, "thread", Map.of("messages", List.of(message))))
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("create thread and run", e));
+    }
+
+    public Flux<ServerSentEvent<String>> streamThreadAndRun(Map<String, String> message) {
+        return webClient.post()
+                .uri("/v1/threads/runs")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(Map.of("assistant_id", ASSISTANT_ID, "thread", Map.of("messages", List.of(message)), "stream", true))
+                .retrieve()
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+                .doOnError(WebClientResponseException.class, e -> logError("stream thread and run", e));
+    }
+
+    public Mono<String> getRun(String threadId, String runId) {
+        return webClient.get()
+                .uri("/v1/threads/{threadId}/runs/{runId}", threadId, runId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("get run " + runId, e));
+    }
+
+    /**
+     * Ответ конкретного run - одно последнее сообщение, без выгрузки всего треда
+     */
+    public Mono<String> getRunAnswer(String threadId, String runId) {
+        return webClient.get()
+                .uri(uriBuilder -> uriBuilder
+                        .path("/v1/threads/{threadId}/messages")
+                        .queryParam("run_id", runId)
+                        .queryParam("limit", 1)
+                        .queryParam("order", "desc")
+                        .build(threadId))
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("get answer of run " + runId, e));
+    }
+
+    /**
+     * Файлы и ассистенты
+     */
+    public Mono<String> getFile(String fileId) {
+        return webClient.get()
+                .uri("/v1/files/{fileId}", fileId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("get file " + fileId, e));
+    }
+
+    public Mono<String> listFiles() {
+        return webClient.get()
+                .uri("/v1/files")
+                .retrieve()
+                .bodyToMono(String.class);
+    }
+
+    public Mono<String> listAssistants() {
+        return webClient.get()
+                .uri("/v1/assistants")
+                .retrieve()
+                .bodyToMono(String.class);
+    }
+
+    /**
+     * Обычный chat completion, используется для резюмирования истории
+     */
+    public Mono<String> createChatCompletion(Map<String, Object> body) {
+        return webClient.post()
+                .uri("/v1/chat/completions")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(body)
+                .retrieve()
+                .bodyToMono(String.class)
+                .doOnError(WebClientResponseException.class, e -> logError("chat completion", e));
+    }
+
+    private void logError(String operation, WebClientResponseException e) {
+        log.error("Open AI error on {}: {} - {}", operation, e.getStatusCode(), e.getResponseBodyAsString());
+    }
+}
@@ -1,41 +1,23 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.ai;
 
 import com.ivan_degtev.telegrambotforpapablinov.mapper.OpenAiMapper;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
 
 import java.util.List;
 import java.util.Map;
 
 @Service
 @Slf4j
+@RequiredArgsConstructor
 public class OpenAiMemoryControlServiceImpl {
 
-    @Value("${openai.token}")
-    private String openAiToken;
-
-    private final WebClient webClient;
-    private final ProcessingRegularRequestsService processingRegularRequestsService;
+    private final OpenAiAssistantsClient openAiAssistantsClient;
     private final OpenAiMapper openAiMapper;
 
-    private final static String assistantId = "asst_nPqCeUlu5QPRx9OhhrRKmSLB";
-
-    public OpenAiMemoryControlServiceImpl(
-            @Value("${openai.token}") String openAiToken,
-            OpenAiMapper openAiMapper,
-            WebClient.Builder webClient,
-            ProcessingRegularRequestsService processingRegularRequestsService
-    ) {
-        this.openAiToken = openAiToken;
-        this.openAiMapper = openAiMapper;
-        this.webClient = webClient
-                .baseUrl("https://api.openai.com")
-                .build();
-        this.processingRegularRequestsService = processingRegularRequestsService;
-    }
-
 
     /**
      * Метод с запросом на апи для создания краткого резюме прошлого диалога для последующего внедрения этого в новый тред
@@ -43,13 +25,15 @@ public class OpenAiMemoryControlServiceImpl {
      * @return
      */
     public String generateManualSummary(String threadId, String fromId) {
-        StringBuilder threadMessages = getThreadMessages(threadId, fromId);
+        return generateSummary(threadId, fromId).block();
+    }
 
-        String summaryResponse = webClient.post()
-                .uri("/v1/chat/completions")
-                .header("Authorization", "Bearer " + openAiToken)
-                .header("Content-Type", "application/json")
-                .bodyValue(Map.of(
+    /**
+     * Неблокирующая версия резюмирования: сообщения треда -> маппинг в строку с ролями -> chat completion
+     */
+    public Mono<String> generateSummary(String threadId, String fromId) {
+        return getThreadMessages(threadId, fromId)
+                .flatMap(threadMessages -> openAiAssistantsClient.createChatCompletion(Map.of(
                         "model", "gpt-4",
                         "messages", List.of(
                                 Map.of("role", "user", "content", "Сделай резюме по контексту предыдущего общения с клиентом, " +
@@ -57,24 +41,22 @@ public class OpenAiMemoryControlServiceImpl {
                                         + threadMessages.toString())
                         ),
                         "max_tokens", 300
-                ))
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-
-        return summaryResponse;
+                )));
     }
 
     /**
-     * Утилитный метод для резюмирования истории  - получает все сообщения по апи и отдаёт их в маппер для маппинга в строку с ролями
+     * Утилитный метод для резюмирования истории  - получает все сообщения по апи и отдаёт их в маппер для маппинга в строку с ролями.
+     * Если тред уже удален - резюмировать нечего, отдаётся пустая история
      * @param threadId
      * @return
      */
-    private StringBuilder getThreadMessages(String threadId, String fromId) {
-        String validThread = processingRegularRequestsService.ensureValidThread(fromId, threadId);
-        String allMessages = processingRegularRequestsService.getMessages(validThread);
-        StringBuilder mapWithMessages = openAiMapper.extractRoleAndContentFromMemory(allMessages);
-        return mapWithMessages;
+    private Mono<StringBuilder> getThreadMessages(String threadId, String fromId) {
+        return openAiAssistantsClient.listMessages(threadId)
+                .onErrorResume(WebClientResponseException.NotFound.class, e -> {
+                    log.warn("Тред {} пользователя {} не найден, резюме будет пустым", threadId, fromId);
+                    return Mono.just("{}");
+                })
+                .map(openAiMapper::extractRoleAndContentFromMemory);
     }
 
 }
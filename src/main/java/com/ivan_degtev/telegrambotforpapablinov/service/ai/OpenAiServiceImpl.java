@@ -1,6 +1,7 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.ai;
 
 import com.ivan_degtev.telegrambotforpapablinov.component.TelegramWebhookConfiguration;
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.dto.mapping.WebhookPayloadDto;
 import com.ivan_degtev.telegrambotforpapablinov.service.OpenAiService;
 import lombok.RequiredArgsConstructor;
@@ -18,8 +19,8 @@ public class OpenAiServiceImpl implements OpenAiService {
     private final ProcessingSearchRequestsService processingSearchRequestsService;
 
     @Override
-    public void getAnswerFromLlm(String chatId, String fromId, String question, Long replayMessageId) {
-        processingRegularRequestsService.createRequestGetResponse(chatId, Long.valueOf(fromId), question, replayMessageId);
+    public void getAnswerFromLlm(String chatId, UserSessionState session, String question, Long replayMessageId) {
+        processingRegularRequestsService.createRequestGetResponse(chatId, session, question, replayMessageId);
 //        log.info("Ответ от ллм {}", llmAnswer);
 
 //        sendMessage(chatId, llmAnswer, replayMessageId);
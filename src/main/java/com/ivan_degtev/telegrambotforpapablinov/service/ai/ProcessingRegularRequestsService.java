@@ -1,40 +1,55 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.ai;
 
+import com.ivan_degtev.telegrambotforpapablinov.component.ProgressiveAnswerSender;
 import com.ivan_degtev.telegrambotforpapablinov.component.TelegramWebhookConfiguration;
 import com.ivan_degtev.telegrambotforpapablinov.dto.TYPE_REQUEST;
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.exception.LlmQuerySyntaxException;
 import com.ivan_degtev.telegrambotforpapablinov.mapper.OpenAiMapper;
 import com.ivan_degtev.telegrambotforpapablinov.service.impl.RedisServiceImpl;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
+import dev.langchain4j.model.input.PromptTemplate;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.Lazy;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class ProcessingRegularRequestsService {
 
     private final TelegramWebhookConfiguration telegramWebhookConfiguration;
-    @Value("${openai.token}")
-    private String openAiToken;
-    private final WebClient webClient;
+    @Value("${openai.run-mode:stream}")
+    private String runMode;
+    @Value("${openai.regular-mode:local}")
+    private String regularMode;
+    private final Assistant assistant;
+    private final ChatMemoryProvider chatMemoryProvider;
+    private final OpenAiAssistantsClient openAiAssistantsClient;
     private final OpenAiMapper openAiMapper;
 
-    @Lazy private final OpenAiMemoryControlServiceImpl openAiMemoryControlService;
+    private final ThreadRotationService threadRotationService;
     private final ProcessingSearchRequestsService processingSearchRequestsService;
     private final RedisServiceImpl redisService;
+    private final ProgressiveAnswerSender progressiveAnswerSender;
+    private final SemanticAnswerCache semanticAnswerCache;
+    private final DocumentSearchService documentSearchService;
 
-    private final static String ASSISTANT_ID = "asst_nPqCeUlu5QPRx9OhhrRKmSLB";
    /* private final static String SYSTEM_MESSAGE_FOR_SEARCH_ID_FILES = """
             Пользователь ищет актуальные файлы из векторного хранилища по своему запросу. Тебе нужно проанализировать его запрос, найти 5 самых подходящих файла 
             и выдать только их внутренние названия и id без изменений! Выдать нужно в формате json, но без изменения названий файлов! Нужно записать в json название
@@ -45,143 +60,378 @@ public class ProcessingRegularRequestsService {
             
             """;
 
+    private final static String RUN_MODE_STREAM = "stream";
+    private final static String REGULAR_MODE_LOCAL = "local";
+    private final static String RUN_CREATED_EVENT = "thread.run.created";
+    private final static String RUN_COMPLETED_EVENT = "thread.run.completed";
+    private final static String MESSAGE_DELTA_EVENT = "thread.message.delta";
+    private final static Set<String> RUN_TERMINAL_EVENTS = Set.of(
+            RUN_COMPLETED_EVENT,
+            "thread.run.failed",
+            "thread.run.cancelled",
+            "thread.run.expired",
+            "thread.run.incomplete",
+            "thread.run.requires_action",
+            "error"
+    );
+    private final static Set<String> RUN_TERMINAL_STATUSES = Set.of(
+            "completed", "failed", "cancelled", "expired", "incomplete", "requires_action"
+    );
+    private final static Duration RUN_TIMEOUT = Duration.ofSeconds(120);
+    private final static Duration RUN_POLL_INTERVAL = Duration.ofSeconds(2);
+    private final static int MESSAGES_BEFORE_ROTATION = 20;
+    private final static Duration ROTATION_LOCK_TTL = Duration.ofMinutes(5);
+    private final static int SEARCH_RESULTS_LIMIT = 5;
+
     private final static Map<Long, String> userThreads = new HashMap<>();
     private final static Map<Long, Integer> summaryMessagesForUser = new HashMap<>();
 
     public ProcessingRegularRequestsService(
-            @Value("${openai.token}") String openAiToken,
             OpenAiMapper openAiMapper,
-            WebClient.Builder webClient,
-            @Lazy OpenAiMemoryControlServiceImpl openAiMemoryControlService,
+            OpenAiAssistantsClient openAiAssistantsClient,
+            ThreadRotationService threadRotationService,
             ProcessingSearchRequestsService processingSearchRequestsService,
             TelegramWebhookConfiguration telegramWebhookConfiguration,
-            RedisServiceImpl redisService
+            RedisServiceImpl redisService,
+            ProgressiveAnswerSender progressiveAnswerSender,
+            SemanticAnswerCache semanticAnswerCache,
+            DocumentSearchService documentSearchService,
+            Assistant assistant,
+            ChatMemoryProvider chatMemoryProvider
     ) {
-        this.openAiToken = openAiToken;
         this.openAiMapper = openAiMapper;
-        this.webClient = webClient
-                .baseUrl("https://api.openai.com")
-                .build();
-        this.openAiMemoryControlService = openAiMemoryControlService;
+        this.openAiAssistantsClient = openAiAssistantsClient;
+        this.threadRotationService = threadRotationService;
         this.processingSearchRequestsService = processingSearchRequestsService;
         this.telegramWebhookConfiguration = telegramWebhookConfiguration;
         this.redisService = redisService;
+        this.progressiveAnswerSender = progressiveAnswerSender;
+        this.semanticAnswerCache = semanticAnswerCache;
+        this.documentSearchService = documentSearchService;
+        this.assistant = assistant;
+        this.chatMemoryProvider = chatMemoryProvider;
     }
 
-    public void createRequestGetResponse(String chatId, Long fromId, String question, Long replayMessageId) {
+    /**
+     * @param session - состояние пользователя, прочитанное из редиса в начале обработки апдейта
+     */
+    public void createRequestGetResponse(String chatId, UserSessionState session, String question, Long replayMessageId) {
+        String fromId = session.getFromId();
+        AtomicInteger upstreamCalls = new AtomicInteger();
         try {
-//            String threadId = userThreads.get(fromId);
-//            TYPE_REQUEST currentTypeRequest = redisService.getUserRequestType(String.valueOf(fromId));
-//
-//            if (threadId == null) {
-//                String jsonResponseCreateThread = createThread(fromId);
-//                threadId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateThread);
-//
-//                userThreads.put(fromId, threadId);
-//                addAndCleanHistoryMessage(fromId);
-//            } else {
-//                addAndCleanHistoryMessage(fromId);
-//                threadId = userThreads.get(fromId);
-//            }
-            String threadId = redisService.getUserThread(String.valueOf(fromId));
-            System.out.println("Retrieved Thread ID from Redis: " + threadId);
-            TYPE_REQUEST currentTypeRequest = redisService.getUserRequestType(String.valueOf(fromId));
-
-            if (threadId == null) {
-                String jsonResponseCreateThread = createThread(fromId);
-                System.out.println("Create Thread Response: " + jsonResponseCreateThread);
-
-                threadId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateThread);
-                System.out.println("Extracted Thread ID: " + threadId);
-
-                redisService.setUserThread(String.valueOf(fromId), threadId);
-                addAndCleanHistoryMessage(String.valueOf(fromId));
-            } else {
-                addAndCleanHistoryMessage(String.valueOf(fromId));
+            TYPE_REQUEST currentTypeRequest = session.getTypeRequest();
+
+            // частые вопросы отдаются из семантического кэша без запуска ассистента. Кэш общий для всех пользователей,
+            // поэтому в нём только первые вопросы разговора: продолжение("а подробнее?") зависит от контекста конкретного пользователя
+            boolean cacheable = !currentTypeRequest.equals(TYPE_REQUEST.SEARCH) && !hasConversationContext(session);
+            if (cacheable) {
+                Optional<String> cachedAnswer = semanticAnswerCache.lookup(question);
+                if (cachedAnswer.isPresent()) {
+                    telegramWebhookConfiguration.sendResponseMessage(chatId, cachedAnswer.get(), replayMessageId);
+                    rememberCachedExchange(session, question, cachedAnswer.get());
+                    return;
+                }
             }
 
-            if (threadId == null || threadId.isEmpty()) {
-                throw new IllegalArgumentException("Thread ID is null or empty");
+            // файлы ищутся в локальном индексе документов, ассистент с file_search нужен только пока индекс строится
+            if (currentTypeRequest.equals(TYPE_REQUEST.SEARCH) && documentSearchService.isReady()) {
+                Set<String> fileNames = documentSearchService.search(question, SEARCH_RESULTS_LIMIT).stream()
+                        .map(DocumentSearchService.DocumentMatch::fileName)
+                        .collect(Collectors.toCollection(LinkedHashSet::new));
+                if (!fileNames.isEmpty()) {
+                    processingSearchRequestsService.sendMatchingFiles(fileNames, chatId, replayMessageId);
+                    return;
+                }
             }
 
-            //here we are creating LLM instructions to retrieve only the referenced files names without distorting them aanyhow
-            String jsonResponseCreateMessage = createResponseMessage(currentTypeRequest, threadId, question);
-            String responseMessageId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateMessage);
+            // обычный вопрос - один запрос chat completion с фрагментами из локального индекса документов вместо run ассистента
+            if (!currentTypeRequest.equals(TYPE_REQUEST.SEARCH) && REGULAR_MODE_LOCAL.equals(regularMode)
+                    && documentSearchService.isReady()) {
+                upstreamCalls.incrementAndGet();
+                answerLocally(chatId, fromId, question, replayMessageId, cacheable);
+                return;
+            }
 
-            String jsonResponseCreateRun = runThread(threadId);
-            String responseRunId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateRun);
+            String threadId = session.getThreadId();
+            log.info("Thread ID from session: {}", threadId);
 
-            if (checkStatusReceivingResponse(threadId, responseRunId)) {
-                String jsonResponseGetMessages = getMessages(threadId);
-                log.info("jsonResponseGetMessages: {}", jsonResponseGetMessages);
-                String responseIdAnswer = openAiMapper.extractLatestMessageId(jsonResponseGetMessages);
-                log.info("responseIdAnswer {}", responseIdAnswer);
+            // для нового пользователя тред создается вместе с первым run, отдельный createThread не нужен
+            if (threadId != null) {
+                addAndCleanHistoryMessage(fromId);
+            }
+            Map<String, String> userMessage = buildUserMessage(currentTypeRequest, question);
+
+            if (RUN_MODE_STREAM.equals(runMode) && progressiveAnswerSender.isEnabled()
+                    && !currentTypeRequest.equals(TYPE_REQUEST.SEARCH)) {
+                AtomicReference<String> runThreadId = new AtomicReference<>();
+                String deliveredAnswer = progressiveAnswerSender.deliver(chatId, replayMessageId,
+                        streamAnswerDeltas(threadId, userMessage, runThreadId)
+                                .contextWrite(OpenAiAssistantsClient.countCallsInto(upstreamCalls)));
+                rememberCreatedThread(session, runThreadId.get());
+                if (cacheable) {
+                    semanticAnswerCache.put(question, deliveredAnswer);
+                }
+                return;
+            }
 
-                Set<String> fileNames = new HashSet<>(openAiMapper.extractFileNamesById(jsonResponseGetMessages, responseIdAnswer));
-                log.info("File Names {}", fileNames);
+            // единственная точка ожидания - вся цепочка запросов к open ai собрана в askAssistant без блокировок
+            RunAnswer answer = askAssistant(threadId, userMessage)
+                    .contextWrite(OpenAiAssistantsClient.countCallsInto(upstreamCalls))
+                    .block();
+            if (answer == null) {
+                log.warn("Run в треде {} не завершился успешно, ответ не отправлен", threadId);
+                return;
+            }
+            rememberCreatedThread(session, answer.threadId());
 
-                String jsonResponseGetMessage = getMessage(threadId, responseIdAnswer);
-                String responseLlm = openAiMapper.extractDataFromLlmAnswer(jsonResponseGetMessage);
+            String jsonResponseGetMessages = answer.messages();
+            String responseIdAnswer = openAiMapper.extractLatestMessageId(jsonResponseGetMessages);
+            log.info("responseIdAnswer {}", responseIdAnswer);
 
-                if (currentTypeRequest.equals(TYPE_REQUEST.SEARCH)) {
-                    if (fileNames.isEmpty()) {
-                        Map<String, String> filesData = openAiMapper.extractFileIds(responseLlm);
-                        processingSearchRequestsService.preparingDataForDownloadingFiles(filesData, chatId, replayMessageId);
-                    } else if (fileNames.stream().anyMatch(file -> file.equals("source"))) {
-                        Set<String> files = new HashSet<>();
-                        Set<String> fileIds = new HashSet<>(openAiMapper.extractFileIds(jsonResponseGetMessages, responseIdAnswer));
+            Set<String> fileNames = new HashSet<>(openAiMapper.extractFileNamesById(jsonResponseGetMessages, responseIdAnswer));
+            log.info("File Names {}", fileNames);
 
-                        fileIds.forEach(file -> files.add(getFile(file)));
-                        System.out.println(files);
+            String responseLlm = openAiMapper.extractDataFromLlmAnswer(openAiMapper.extractLatestMessage(jsonResponseGetMessages));
 
-                        Set<String> fileNameList = new HashSet<>(openAiMapper.extractFileNamesFromJson(files));
-                        processingSearchRequestsService.sendMatchingFiles(fileNameList, chatId, replayMessageId);
+            if (currentTypeRequest.equals(TYPE_REQUEST.SEARCH)) {
+                if (fileNames.isEmpty()) {
+                    Map<String, String> filesData = openAiMapper.extractFileIds(responseLlm);
+                    processingSearchRequestsService.preparingDataForDownloadingFiles(filesData, chatId, replayMessageId);
+                } else if (fileNames.stream().anyMatch(file -> file.equals("source"))) {
+                    Set<String> fileIds = new HashSet<>(openAiMapper.extractFileIds(jsonResponseGetMessages, responseIdAnswer));
 
-                    } else if (fileNames.stream().anyMatch(file -> file.contains("file"))) {
-                        Set<String> fileNameList = openAiMapper.extractFileNamesFromJson(fileNames);
-                        processingSearchRequestsService.sendMatchingFiles(fileNameList, chatId, replayMessageId);
-                    }
-                    else {
-                        processingSearchRequestsService.sendMatchingFiles(fileNames, chatId, replayMessageId);
-                    }
-                    return;
+                    Set<String> files = Flux.fromIterable(fileIds)
+                            .flatMap(openAiAssistantsClient::getFile)
+                            .collect(Collectors.toSet())
+                            .contextWrite(OpenAiAssistantsClient.countCallsInto(upstreamCalls))
+                            .block();
+
+                    Set<String> fileNameList = new HashSet<>(openAiMapper.extractFileNamesFromJson(files));
+                    processingSearchRequestsService.sendMatchingFiles(fileNameList, chatId, replayMessageId);
+
+                } else if (fileNames.stream().anyMatch(file -> file.contains("file"))) {
+                    Set<String> fileNameList = openAiMapper.extractFileNamesFromJson(fileNames);
+                    processingSearchRequestsService.sendMatchingFiles(fileNameList, chatId, replayMessageId);
                 }
-                log.info("Получил ответ от ллм по сути вопроса замапленный: {}", responseLlm);
+                else {
+                    processingSearchRequestsService.sendMatchingFiles(fileNames, chatId, replayMessageId);
+                }
+                return;
+            }
+            log.info("Получил ответ от ллм по сути вопроса замапленный: {}", responseLlm);
 
-                telegramWebhookConfiguration.sendResponseMessage(chatId, responseLlm, replayMessageId);
+            telegramWebhookConfiguration.sendResponseMessage(chatId, responseLlm, replayMessageId);
+            if (cacheable) {
+                semanticAnswerCache.put(question, responseLlm);
             }
         } catch (LlmQuerySyntaxException ex) {
             throw new LlmQuerySyntaxException("Ошибка в последовательности запросов к Open AI для работы с ассистентом");
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (upstreamCalls.get() > 0) {
+                openAiAssistantsClient.recordRequestCalls(upstreamCalls.get());
+                log.info("Вопрос от {} обработан за {} запросов к open ai", fromId, upstreamCalls.get());
+            }
+        }
+    }
+
+    /**
+     * Ответ через ассистента langchain4j: память разговора хранится локально по fromId, фрагменты документов
+     * подставляет RetrievalAugmentor. При включенной постепенной доставке ответ стримится
+     */
+    private void answerLocally(String chatId, String fromId, String question, Long replayMessageId, boolean cacheable) {
+        String answer;
+        if (progressiveAnswerSender.isEnabled()) {
+            answer = progressiveAnswerSender.deliver(chatId, replayMessageId, localAnswerDeltas(fromId, chatId, question));
+        } else {
+            answer = assistant.chat(fromId, chatId, question);
+            telegramWebhookConfiguration.sendResponseMessage(chatId, answer, replayMessageId);
+        }
+        if (cacheable && answer != null) {
+            semanticAnswerCache.put(question, answer);
+        }
+    }
+
+    /**
+     * Есть ли у пользователя начатый разговор: тред ассистента или непустое окно памяти langchain4j
+     */
+    private boolean hasConversationContext(UserSessionState session) {
+        return session.getThreadId() != null || !chatMemoryProvider.get(session.getFromId()).messages().isEmpty();
+    }
+
+    /**
+     * Ответ из кэша записывается в историю пользователя, чтобы следующий вопрос мог на него опираться:
+     * в режиме local - в окно памяти langchain4j, иначе - в новый тред ассистента
+     */
+    private void rememberCachedExchange(UserSessionState session, String question, String answer) {
+        if (REGULAR_MODE_LOCAL.equals(regularMode)) {
+            ChatMemory memory = chatMemoryProvider.get(session.getFromId());
+            memory.add(UserMessage.from(PromptTemplate.from(Assistant.USER_MESSAGE).apply(Map.of("userMessage", question)).text()));
+            memory.add(AiMessage.from(answer));
+            return;
+        }
+        try {
+            String thread = openAiAssistantsClient.createThread(List.of(
+                    Map.of("role", "user", "content", question),
+                    Map.of("role", "assistant", "content", answer)
+            )).block();
+            rememberCreatedThread(session, openAiMapper.extractIdAfterCreateResponseMessage(thread));
+        } catch (RuntimeException e) {
+            log.warn("Не удалось сохранить ответ из кэша в тред пользователя {}: {}", session.getFromId(), e.getMessage());
+        }
+    }
+
+    private Flux<String> localAnswerDeltas(String memoryId, String chatId, String question) {
+        return Flux.create(sink -> assistant.chatStream(memoryId, chatId, question)
+                .onNext(sink::next)
+                .onComplete(response -> sink.complete())
+                .onError(sink::error)
+                .start());
+    }
+
+    /**
+     * Ответ ассистента на один вопрос
+     * @param threadId - тред, в котором выполнялся run(для нового пользователя - только что созданный)
+     * @param messages - json списка сообщений run, в нём одно сообщение-ответ
+     */
+    public record RunAnswer(String threadId, String messages) {}
+
+    /**
+     * Реактивная цепочка одного вопроса по минимальному плану запросов: run с сообщением пользователя внутри
+     * (для нового пользователя - тред и run одним запросом) -> ответ этого run(limit=1).
+     * Пустой Mono, если run завершился неуспешно
+     * @param threadId - тред пользователя или null, если треда ещё нет
+     */
+    public Mono<RunAnswer> askAssistant(String threadId, Map<String, String> userMessage) {
+        return awaitRunCompletion(threadId, userMessage)
+                .flatMap(run -> {
+                    String runThreadId = openAiMapper.extractThreadIdFromRun(run);
+                    return openAiAssistantsClient
+                            .getRunAnswer(runThreadId, openAiMapper.extractIdAfterCreateResponseMessage(run))
+                            .map(messages -> new RunAnswer(runThreadId, messages));
+                });
+    }
+
+    /**
+     * Запуск run и ожидание его завершения. В режиме stream - по событиям SSE, в режиме poll - опросом getRun
+     * раз в RUN_POLL_INTERVAL(без блокировки потока)
+     * @return json завершённого run
+     */
+    private Mono<String> awaitRunCompletion(String threadId, Map<String, String> userMessage) {
+        if (RUN_MODE_STREAM.equals(runMode)) {
+            return awaitStreamedRun(runEvents(threadId, userMessage));
+        }
+        Mono<String> run = threadId == null
+                ? openAiAssistantsClient.createThreadAndRun(userMessage)
+                : openAiAssistantsClient.createRun(threadId, userMessage);
+        return run.flatMap(created -> pollRun(
+                openAiMapper.extractThreadIdFromRun(created),
+                openAiMapper.extractIdAfterCreateResponseMessage(created)));
+    }
+
+    private Flux<ServerSentEvent<String>> runEvents(String threadId, Map<String, String> userMessage) {
+        log.info("Running thread with ID in stream mode: {}", threadId);
+        return threadId == null
+                ? openAiAssistantsClient.streamThreadAndRun(userMessage)
+                : openAiAssistantsClient.streamRun(threadId, userMessage);
+    }
+
+    private Mono<String> awaitStreamedRun(Flux<ServerSentEvent<String>> events) {
+        return events
+                .filter(event -> RUN_TERMINAL_EVENTS.contains(event.event()))
+                .next()
+                .timeout(RUN_TIMEOUT)
+                .onErrorMap(TimeoutException.class,
+                        e -> new LlmQuerySyntaxException("Время ожидания превышено, статус не стал 'completed'."))
+                .filter(event -> {
+                    if (!RUN_COMPLETED_EVENT.equals(event.event())) {
+                        log.error("Run завершился событием {}: {}", event.event(), event.data());
+                        return false;
+                    }
+                    return true;
+                })
+                .map(ServerSentEvent::data);
+    }
+
+    /**
+     * Старый режим(run-mode: poll) - опрос статуса run, пока он не станет конечным
+     */
+    private Mono<String> pollRun(String threadId, String runId) {
+        log.info("Running thread with ID in poll mode: {}", threadId);
+        return Flux.interval(Duration.ZERO, RUN_POLL_INTERVAL)
+                .onBackpressureDrop()
+                .concatMap(tick -> openAiAssistantsClient.getRun(threadId, runId))
+                .filter(run -> RUN_TERMINAL_STATUSES.contains(openAiMapper.extractRunStatus(run)))
+                .next()
+                .timeout(RUN_TIMEOUT)
+                .onErrorMap(TimeoutException.class,
+                        e -> new LlmQuerySyntaxException("Время ожидания превышено, статус не стал 'completed'."))
+                .filter(run -> {
+                    String status = openAiMapper.extractRunStatus(run);
+                    if (!"completed".equals(status)) {
+                        log.error("Run {} завершился со статусом {}", runId, status);
+                        return false;
+                    }
+                    return true;
+                });
+    }
+
+    /**
+     * Куски текста ответа из стрима run для постепенной доставки в телеграм. Поток завершается на thread.run.completed,
+     * при неуспешном завершении run отдаёт ошибку
+     * @param runThreadId - сюда записывается id треда из события thread.run.created(нужен для нового пользователя)
+     */
+    public Flux<String> streamAnswerDeltas(String threadId, Map<String, String> userMessage, AtomicReference<String> runThreadId) {
+        return runEvents(threadId, userMessage)
+                .takeUntil(event -> RUN_TERMINAL_EVENTS.contains(event.event()))
+                .timeout(RUN_TIMEOUT)
+                .<String>handle((event, sink) -> {
+                    if (MESSAGE_DELTA_EVENT.equals(event.event())) {
+                        String delta = openAiMapper.extractTextDelta(event.data());
+                        if (!delta.isEmpty()) {
+                            sink.next(delta);
+                        }
+                    } else if (RUN_CREATED_EVENT.equals(event.event())) {
+                        runThreadId.set(openAiMapper.extractThreadIdFromRun(event.data()));
+                    } else if (RUN_TERMINAL_EVENTS.contains(event.event()) && !RUN_COMPLETED_EVENT.equals(event.event())) {
+                        sink.error(new LlmQuerySyntaxException("Run завершился событием " + event.event() + ": " + event.data()));
+                    }
+                });
+    }
+
+    /**
+     * Сохраняет тред, созданный вместе с первым run нового пользователя, и начинает для него отсчет сообщений
+     */
+    private void rememberCreatedThread(UserSessionState session, String runThreadId) {
+        if (session.getThreadId() != null || runThreadId == null || runThreadId.isEmpty()) {
+            return;
         }
+        log.info("Extracted Thread ID: {}", runThreadId);
+        redisService.setUserThread(session.getFromId(), runThreadId);
+        session.setThreadId(runThreadId);
+        addAndCleanHistoryMessage(session.getFromId());
     }
 
     /**
-     * метод проверяет кол-во записей в мапе по id чата, когда оно равно 20  - создаётся новый тред и отсчет начинается заново(для экономии токенов)
+     * Сообщение-вопрос к ллм для помещения его в тред
+     */
+    private Map<String, String> buildUserMessage(TYPE_REQUEST currentTypeId, String userMessage) {
+        if (currentTypeId.equals(TYPE_REQUEST.SEARCH)) {
+            return Map.of("role", "user", "content", SYSTEM_MESSAGE_FOR_SEARCH_ID_FILES + "Запрос пользователя: " + userMessage);
+        }
+        return Map.of("role", "user", "content", userMessage);
+    }
+
+    /**
+     * метод проверяет кол-во записей в треде пользователя, когда оно доходит до 20 - в фоне создаётся новый тред с резюме
+     * старого(для экономии токенов). Текущий вопрос при этом идёт в старый тред, пользователь не ждёт резюмирования
      */
     public void addAndCleanHistoryMessage(String fromId) {
-        String countStr = redisService.getUserMessageCount(fromId);
-        int currentMessageCount = (countStr != null && !countStr.isEmpty()) ? Integer.parseInt(countStr) : 0;
-        log.info("Получил в сервис данные о кол-ве сообщений в треде и замапил в инт {}", currentMessageCount);
-
-        if (currentMessageCount == 0) {
-//            redisService.incrementUserMessageCount(fromId);
-            redisService.incrementUserMessageCount(fromId, String.valueOf(currentMessageCount + 1));
-        } else if (currentMessageCount < 20) {
-//            redisService.incrementUserMessageCount(fromId);
-            redisService.incrementUserMessageCount(fromId, String.valueOf(currentMessageCount + 1));
-        } else if (currentMessageCount == 20) {
-            String summaryMessages = openAiMemoryControlService.generateManualSummary(redisService.getUserThread(fromId), fromId);
-
-            deleteOldThread(fromId);
-
-            String jsonResponseCreateThread = createNewThreadWithSummary(summaryMessages, fromId);
-            String threadId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateThread);
-
-            redisService.setUserThread(fromId, threadId);
-            redisService.resetUserMessageCount(fromId);
-            log.info("Записан новый id треда после переполнения прошлого {}", redisService.getUserThread(fromId));
+        // инкремент и решение о ротации - один атомарный скрипт в редисе, ротацию получает только один из параллельных вызовов
+        if (redisService.incrementMessageCountOrClaimRotation(fromId, MESSAGES_BEFORE_ROTATION, ROTATION_LOCK_TTL)) {
+            threadRotationService.requestRotation(fromId);
+            log.info("Тред пользователя {} переполнен, запущена фоновая ротация", fromId);
         }
     }
 //    public void addAndCleanHistoryMessage(Long chatId) {
@@ -203,85 +453,35 @@ public class ProcessingRegularRequestsService {
 //        }
 //    }
     /**
-     * Метод проверяет внесен ли в общий тред ответ от ллм, когда это происходит - он отдаёт айди этого сообщения
-     * @return
-     */
-    public boolean checkStatusReceivingResponse(String threadId, String responseRunId) {
-        Instant startTime = Instant.now();
-        String responseRunStatus;
-
-        do {
-            String jsonResponseGetRun = getRun(threadId, responseRunId);
-            responseRunStatus = openAiMapper.extractRunStatus(jsonResponseGetRun);
-
-            if (responseRunStatus.equals("completed")) {
-                return true;
-            }
-
-            if (Duration.between(startTime, Instant.now()).getSeconds() > 120) {
-                log.error("Timeout reached while waiting for completion status.");
-                throw new LlmQuerySyntaxException("Время ожидания превышено, статус не стал 'completed'.");
-            }
-
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.error("Interrupted while waiting for completion status", e);
-                return false;
-            }
-        } while (!responseRunStatus.equals("completed"));
-
-        return false;
-    }
-
-    /**
-     * Утилитный метод для создания нового треда для экономии токенов и передачи в него резюме прошлого контекста общения, срабатывает после 10 вопросов в текущем треде
+     * Утилитный метод для создания нового треда для экономии токенов и передачи в него резюме прошлого контекста общения, срабатывает после 20 вопросов в текущем треде
      * @param summary
      * @return
      */
     public String createNewThreadWithSummary(String summary, String fromId) {
         try {
-            // Попытка создать новый тред
-            String response = webClient.post()
-                    .uri("/v1/threads")
-                    .header("Authorization", "Bearer " + openAiToken)
-                    .header("Content-Type", "application/json")
-                    .header("OpenAI-Beta", "assistants=v2")
-                    .bodyValue(Map.of(
-                            "assistant_id", ASSISTANT_ID,
-                            "messages", List.of(
-                                    Map.of("role", "assistant", "content", "Вот что мы обсудили на данный момент: " + summary)
-                            )
-                    ))
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block();
-            return response; // Возвращаем ответ, если создание прошло успешно
+            return openAiAssistantsClient.createThread(List.of(
+                    Map.of("role", "assistant", "content", "Вот что мы обсудили на данный момент: " + summary)
+            )).block();
         } catch (WebClientResponseException e) {
             if (e.getStatusCode() == HttpStatus.BAD_REQUEST) {
-                System.out.println("Bad Request: " + e.getResponseBodyAsString());
-            } else {
-                System.out.println("Error while creating thread: " + e.getStatusCode() + " - " + e.getResponseBodyAsString());
+                log.warn("Bad Request: {}", e.getResponseBodyAsString());
             }
-            System.out.println("Creating a new thread due to an error...");
+            log.warn("Creating a new thread due to an error...");
             return createThread(Long.valueOf(fromId)); // Метод для создания нового треда
         }
     }
 
+    /**
+     * Удаление треда пользователя в open ai. В режиме regular-mode: local у пользователя может не быть треда
+     * @return ответ open ai или null, если треда нет
+     */
     public String deleteOldThread(String fromId) {
         String threadId = redisService.getUserThread(fromId);
+        if (threadId == null) {
+            return null;
+        }
 
-        String response = webClient.delete()
-                .uri(uriBuilder -> uriBuilder
-                        .path("/v1/threads/{threadId}")
-                        .build(threadId))
-                .header("Authorization", "Bearer " + openAiToken)
-                .header("Content-Type", "application/json")
-                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        String response = openAiAssistantsClient.deleteThread(threadId).block();
         redisService.deleteOldThread(fromId);
         return response;
     }
@@ -290,190 +490,46 @@ public class ProcessingRegularRequestsService {
      * Утилитный метод для получения всех ассистентов по айди данной компании в open ai
      */
     public String getCompanyAssistants() {
-        return webClient.get()
-                .uri("/v1/assistants")
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        return openAiAssistantsClient.listAssistants().block();
     }
     /**
-     * Утилитный метод для получения всех ассистентов по айди данной компании в open ai
+     * Утилитный метод для получения всех файлов данной компании в open ai
      */
     public String getCompanyFiles() {
-        return webClient.get()
-                .uri("/v1/files")
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-//                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        return openAiAssistantsClient.listFiles().block();
     }
 
     /**
      *     Метод для создания треда для конкретного пользователя
      */
     public String createThread(Long chatId) {
-        System.out.println("creating thread from chatid: " + chatId);
-        return webClient.post()
-                .uri("/v1/threads")
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .contentType(MediaType.APPLICATION_JSON)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-
-    }
-
-    /**
-     * Метод по созданию сообщения-вопрос к ллм, для помещения его после в тред
-     */
-    public String createResponseMessage(TYPE_REQUEST currentTypeId, String threadId, String userMessage) {
-        Map<String, String> messages = new HashMap<>();
-
-        if (currentTypeId.equals(TYPE_REQUEST.SEARCH)) {
-            messages = Map.of("role", "user", "content", SYSTEM_MESSAGE_FOR_SEARCH_ID_FILES + "Запрос пользователя: " + userMessage);
-        } else {
-            messages = Map.of("role", "user", "content", userMessage);
-        }
-        System.out.println("Fetching messages for Thread ID: " + threadId);
-
-        return webClient.post()
-                .uri(uriBuilder -> uriBuilder
-                        .path("/v1/threads/{threadId}/messages")
-                        .build(threadId))
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(messages)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-    }
-
-    /**
-     * Метод для запуска треда, в который добавлено текущее сообщение. Важно. Получить айди этого запуска для дальнейшей работы
-     * @param threadId
-     * @return
-     */
-    public String runThread(String threadId) {
-        log.info("Running thread with ID: {}", threadId);
-        try {
-            return webClient.post()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/v1/threads/{threadId}/runs")
-                            .build(threadId))
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                    .header("OpenAI-Beta", "assistants=v2")
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(Map.of("assistant_id", ASSISTANT_ID))
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block();
-        } catch (WebClientResponseException e) {
-            log.error("Error response from server: {}", e.getResponseBodyAsString());
-            log.error("Status code: {}, message: {}", e.getStatusCode(), e.getMessage());
-            return null;
-        } catch (Exception e) {
-            log.error("Unexpected error occurred", e);
-            return null;
-        }
-    }
-
-
-    /**
-     * Метод для просмотра инфы о запуске. Использвоать только статус - при завершённом - получить далее изменения в треде - то есть ответ
-     * @param threadId
-     * @param runId - получить после запуска
-     * @return
-     */
-    public String getRun(String threadId, String runId) {
-        return webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                        .path("/v1/threads/{threadId}/runs/{runId}")
-                        .build(threadId, runId))
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        log.info("creating thread from chatid: {}", chatId);
+        return openAiAssistantsClient.createThread().block();
     }
 
     /**
-     * Получить все сообщения из треда. Использвоать, когда нужно получить айди последнего сообщения - ответа от ллм
+     * Получить все сообщения из треда
      * @param threadId
      * @return
      */
     public String getMessages(String threadId) {
-        System.out.println("Fetching messages for Thread ID: " + threadId);
-        try {
-            return webClient.get()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/v1/threads/{threadId}/messages")
-                            .build(threadId))
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                    .header("OpenAI-Beta", "assistants=v2")
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block();}
-        catch (WebClientResponseException e) {
-            System.err.println("Error fetching messages for Thread ID: " + threadId);
-            System.err.println("Status Code: " + e.getStatusCode());
-            System.err.println("Response Body: " + e.getResponseBodyAsString());
-            throw e;
-        }
-    }
-
-    public String getMessage(String threadId, String messageId) {
-        return webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                        .path("/v1/threads/{threadId}/messages/{messageId}")
-                        .build(threadId, messageId))
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        return openAiAssistantsClient.listMessages(threadId).block();
     }
 
     public String ensureValidThread(String userId, String threadId) {
         try {
             // Проверяем доступность треда
-            webClient.get()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/v1/threads/{threadId}/messages")
-                            .build(threadId))
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                    .header("OpenAI-Beta", "assistants=v2")
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block();
+            openAiAssistantsClient.listMessages(threadId).block();
             return threadId;
         } catch (WebClientResponseException.NotFound e) {
             // Тред недоступен, создаем новый
-            System.out.println("Thread not found, creating a new one...");
+            log.warn("Thread not found, creating a new one...");
 
             String jsonResponseCreateThread = createThread(Long.parseLong(userId));
-            System.out.println("Create Thread Response: " + jsonResponseCreateThread);
-
             String newThreadId = openAiMapper.extractIdAfterCreateResponseMessage(jsonResponseCreateThread);
-            System.out.println("Extracted Thread ID: " + newThreadId);
+            log.info("Extracted Thread ID: {}", newThreadId);
             redisService.setUserThread(userId, newThreadId);
             return newThreadId;
         }
     }
-
-    public String getFile(String fileId) {
-        return webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                        .path("/v1/files/{file_id}")
-                        .build(fileId))
-                .header(HttpHeaders.AUTHORIZATION, "Bearer " + openAiToken)
-                .header("OpenAI-Beta", "assistants=v2")
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-    }
-}
\ No newline at end of file
+}
@@ -1,138 +1,144 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.ai;
 
+import com.ivan_degtev.telegrambotforpapablinov.component.CompressedPdfCache;
+import com.ivan_degtev.telegrambotforpapablinov.component.FileCatalog;
+import com.ivan_degtev.telegrambotforpapablinov.component.FileNameIndex;
 import com.ivan_degtev.telegrambotforpapablinov.component.TelegramWebhookConfiguration;
 import com.ivan_degtev.telegrambotforpapablinov.mapper.OpenAiMapper;
-import com.ivan_degtev.telegrambotforpapablinov.mapper.PdfCompressor;
 import com.ivan_degtev.telegrambotforpapablinov.mapper.WebhookMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClientResponseException;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Service
 @Slf4j
 public class ProcessingSearchRequestsService {
 
-    @Value("${openai.token}")
-    private String openAiToken;
-    private final WebClient webClient;
     private final OpenAiMapper openAiMapper;
-    private final PdfCompressor pdfCompressor;
+    private final CompressedPdfCache compressedPdfCache;
     private final TelegramWebhookConfiguration telegramWebhookConfiguration;
+    private final FileCatalog fileCatalog;
+    private final FileNameIndex fileNameIndex;
+    private final int fuzzyTopK;
 
-    //    private final static String PATH_FOR_SAVE_FILES = "src/main/resources/files";
-    private final static String PATH_FOR_SAVE_FILES = "app/files";
+    private final static String COMPRESSION_IN_PROGRESS_MESSAGE =
+            "Файл %s слишком большой для отправки, его сжатая версия ещё готовится. Повторите запрос через несколько минут.";
+    private final static String COMPRESSION_FAILED_MESSAGE =
+            "Файл %s слишком большой для отправки в телеграм и не сжимается до допустимого размера.";
+    private final static Pattern FILE_EXTENSION = Pattern.compile("\\.(?=[A-Za-z0-9]*[A-Za-z])[A-Za-z0-9]{1,5}$");
 
     public ProcessingSearchRequestsService(
-            @Value("${openai.token}") String openAiToken,
             OpenAiMapper openAiMapper,
-            WebClient.Builder webClient, PdfCompressor pdfCompressor,
-            TelegramWebhookConfiguration telegramWebhookConfiguration
+            CompressedPdfCache compressedPdfCache,
+            TelegramWebhookConfiguration telegramWebhookConfiguration,
+            FileCatalog fileCatalog,
+            FileNameIndex fileNameIndex,
+            @Value("${files.name-index.top-k:5}") int fuzzyTopK
     ) {
-        this.openAiToken = openAiToken;
         this.openAiMapper = openAiMapper;
-        this.webClient = webClient
-                .baseUrl("https://api.openai.com")
-                .build();
-        this.pdfCompressor = pdfCompressor;
+        this.compressedPdfCache = compressedPdfCache;
         this.telegramWebhookConfiguration = telegramWebhookConfiguration;
+        this.fileCatalog = fileCatalog;
+        this.fileNameIndex = fileNameIndex;
+        this.fuzzyTopK = fuzzyTopK;
     }
 
     /**
      * Основной метод для подготовки и поиска файлов
      */
     public void preparingDataForDownloadingFiles(Map<String, String> filesData, String chatId, Long replyToMessageId) {
-        for (Map.Entry<String, String> file : filesData.entrySet()) {
-            searchFiles(file.getKey(), chatId, replyToMessageId);
-        }
+        sendMatchingFiles(filesData.keySet(), chatId, replyToMessageId);
     }
 
+    /**
+     * Все найденные файлы собираются в один список без повторов и уходят пачками через sendMediaGroup
+     * одним ответом на запрос пользователя
+     */
     public void sendMatchingFiles(Set<String> fileNames, String chatId, Long replyToMessageId) {
-        fileNames.forEach(fileName -> searchFiles(fileName, chatId, replyToMessageId));
+        Set<File> filesToSend = new LinkedHashSet<>();
+        fileNames.forEach(fileName -> filesToSend.addAll(searchFiles(fileName, chatId, replyToMessageId)));
+        telegramWebhookConfiguration.sendDocuments(chatId, new ArrayList<>(filesToSend), replyToMessageId);
     }
 
     /**
-     * Метод поиска файлов по имени
+     * Метод поиска файлов по имени. Файлы ищутся в каталоге FileCatalog без обращения к диску.
+     * Вместо pdf больше 50 MB отправляется готовая сжатая копия из CompressedPdfCache, если она ещё готовится -
+     * пользователь сразу получает сообщение, а сжатие идёт в фоне
      */
-    private void searchFiles(String fileName, String chatId, Long replyToMessageId) {
-        Path directoryPath = Paths.get(PATH_FOR_SAVE_FILES);
-        List<String> possibleFileNames = prepareNamesWithAllExtensions(fileName);
-        try (Stream<Path> filesStream = Files.list(directoryPath)) {
-            List<File> filesList = filesStream
-                    .map(Path::toFile)
-                    .filter(File::isFile)
-                    .collect(Collectors.toList());
-
-
-// filesList.forEach(file -> log.info("Файл в директории: {}", file.getName()));
-
-// Поиск файлов
-            for (String possibleName : possibleFileNames) {
-                Optional<File> foundFile = filesList.stream()
-                        .filter(file -> normalizeFileName(file.getName()).equalsIgnoreCase(normalizeFileName(possibleName)))
-                        .findFirst();
-
-                if (foundFile.isPresent()) {
-                    File fileToSend = foundFile.get();
-                    log.info("Файл найден: {}", fileToSend.getName());
-
-                    // Проверяем размер файла
-                    if (fileToSend.length() > 50 * 1024 * 1024) { // Если файл больше 50 MB
-                        log.warn("Файл слишком большой, начинаем сжатие: {}", fileToSend.getName());
-                        String compressedFilePath = directoryPath + File.separator + "compressed_" + fileToSend.getName();
-
-                        try {
-                            File compressedFile = pdfCompressor.compressPdfWithImages(fileToSend, compressedFilePath);
-                            if (compressedFile.length() > 50 * 1024 * 1024) {
-                                log.warn("Файл слишком большой после сжатия: {}", fileToSend.getName());
-                            }
-                            log.info("Сжатый файл создан: {}", compressedFile.getName());
-                            telegramWebhookConfiguration.sendDocument(chatId, compressedFile, replyToMessageId);
-                        } catch (IOException e) {
-                            log.error("Ошибка при сжатии файла: {}", e.getMessage());
-                        }
-                    } else {
-                        // Если файл не большой, отправляем оригинал
-                        telegramWebhookConfiguration.sendDocument(chatId, fileToSend, replyToMessageId);
-                    }
+    private List<File> searchFiles(String fileName, String chatId, Long replyToMessageId) {
+        List<File> filesToSend = new ArrayList<>();
+        for (Path foundFile : findFilesByName(fileName)) {
+            File fileToSend = foundFile.toFile();
+            log.info("Файл найден: {}", fileToSend.getName());
+
+            if (compressedPdfCache.needsCompression(fileToSend)) {
+                Optional<File> compressedFile = compressedPdfCache.findReady(fileToSend);
+                if (compressedFile.isPresent()) {
+                    log.info("Отправляем сжатую копию: {}", fileToSend.getName());
+                    filesToSend.add(compressedFile.get());
+                } else if (compressedPdfCache.hasFailed(fileToSend)) {
+                    log.warn("Сжать файл не удалось: {}", fileToSend.getName());
+                    telegramWebhookConfiguration.sendResponseMessage(chatId,
+                            String.format(COMPRESSION_FAILED_MESSAGE, fileToSend.getName()), replyToMessageId);
                 } else {
-                    log.warn("Файл не найден: {}", possibleName);
+                    log.warn("Сжатая копия ещё не готова: {}", fileToSend.getName());
+                    telegramWebhookConfiguration.sendResponseMessage(chatId,
+                            String.format(COMPRESSION_IN_PROGRESS_MESSAGE, fileToSend.getName()), replyToMessageId);
                 }
+            } else {
+                filesToSend.add(fileToSend);
             }
-        } catch (IOException e) {
-            log.error("Ошибка при поиске файлов: {}", e.getMessage());
         }
+        return filesToSend;
     }
 
+    /**
+     * Все файлы каталога, подходящие под имя из ответа ассистента. Без расширения(в т.ч. имена вида "1.10.1. Регистрация ККМ",
+     * где точки - часть нумерации) - все файлы с таким именем,
+     * с расширением - сам файл и его варианты с родственными расширениями(doc/docx, xls/xlsx и т.д.).
+     * Если точного совпадения нет - лучший файл из нечеткого поиска FileNameIndex вместе с его вариантами в других форматах
+     */
+    private List<Path> findFilesByName(String fileName) {
+        List<Path> files = new ArrayList<>();
+        if (!FILE_EXTENSION.matcher(fileName.trim()).find()) {
+            files.addAll(fileCatalog.findByBaseName(fileName));
+        } else {
+            for (String possibleName : prepareNamesWithAllExtensions(fileName)) {
+                fileCatalog.find(possibleName)
+                        .filter(foundFile -> !files.contains(foundFile))
+                        .ifPresent(files::add);
+            }
+        }
+        if (!files.isEmpty()) {
+            return files;
+        }
+
+        List<FileNameIndex.Match> matches = fileNameIndex.search(fileName, fuzzyTopK);
+        if (matches.isEmpty()) {
+            log.warn("Файл не найден: {}", fileName);
+            return files;
+        }
+        log.info("Точного совпадения для {} нет, похожие файлы: {}", fileName, matches.stream()
+                .map(match -> String.format(Locale.ROOT, "%s(%.2f)", match.file().getFileName(), match.score()))
+                .collect(Collectors.joining(", ")));
+
+        Path bestMatch = matches.get(0).file();
+        String bestFileName = bestMatch.getFileName().toString();
+        int dot = bestFileName.lastIndexOf('.');
+        files.addAll(dot > 0 ? fileCatalog.findByBaseName(bestFileName.substring(0, dot)) : Set.of(bestMatch));
+        return files;
+    }
 
     private List<String> prepareNamesWithAllExtensions(String fileName) {
         List<String> possibleFileNames = new ArrayList<>();
         possibleFileNames.add(fileName);
 
-        if (!fileName.contains(".")) {
-            possibleFileNames.add(fileName + ".docx");
-            possibleFileNames.add(fileName + ".doc");
-            possibleFileNames.add(fileName + ".xlsx");
-            possibleFileNames.add(fileName + ".xls");
-            possibleFileNames.add(fileName + ".txt");
-            possibleFileNames.add(fileName + ".pdf");
-            possibleFileNames.add(fileName + ".txt");
-            return possibleFileNames;
-        }
-
         String baseFileName = fileName.substring(0, fileName.lastIndexOf('.'));
         String fileExtension = fileName.substring(fileName.lastIndexOf('.') + 1);
 
@@ -163,18 +169,4 @@ public class ProcessingSearchRequestsService {
             return possibleFileNames;
         }
 
-    private String normalizeFileName(String fileName) {
-        if (fileName == null) {
-            return "";
-        }
-        String normalized = fileName
-                .trim()
-                .replaceAll("\\s+", " ")          // Объединяем последовательные пробелы
-                .replace('\u00A0', ' ')          // Заменяем неразрывные пробелы
-                .replaceAll("[\\p{Cntrl}]", ""); // Убираем управляющие символы
-        return normalized;
-    }
-
 }
-
-
@@ -0,0 +1,172 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Семантический кэш ответов для обычных(REGULAR) вопросов. Вопрос эмбеддится локальной моделью all-minilm-l6-v2,
+ * если в кэше есть вопрос с косинусной близостью не ниже similarity-threshold - отдаётся сохранённый ответ без запроса
+ * к ассистенту. Записи живут ttl-minutes, при превышении max-entries вытесняется самая давно использованная.
+ * Кэш общий для всех пользователей, поэтому вызывающий обращается к нему только с вопросами, не зависящими
+ * от контекста разговора(первый вопрос пользователя)
+ */
+@Service
+@Slf4j
+public class SemanticAnswerCache {
+
+    private final EmbeddingModel embeddingModel;
+    private final boolean enabled;
+    private final double similarityThreshold;
+    private final int maxEntries;
+    private final Duration ttl;
+    private final int minQuestionLength;
+
+    private final LinkedHashMap<String, CachedAnswer> entries;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong embeddings = new AtomicLong();
+    private final AtomicLong embeddingTotalMillis = new AtomicLong();
+
+    public SemanticAnswerCache(
+            EmbeddingModel embeddingModel,
+            @Value("${openai.answer-cache.enabled:true}") boolean enabled,
+            @Value("${openai.answer-cache.similarity-threshold:0.92}") double similarityThreshold,
+            @Value("${openai.answer-cache.max-entries:1000}") int maxEntries,
+            @Value("${openai.answer-cache.ttl-minutes:720}") long ttlMinutes,
+            @Value("${openai.answer-cache.min-question-length:10}") int minQuestionLength
+    ) {
+        this.embeddingModel = embeddingModel;
+        this.enabled = enabled;
+        this.similarityThreshold = similarityThreshold;
+        this.maxEntries = maxEntries;
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+        this.minQuestionLength = minQuestionLength;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAnswer> eldest) {
+                if (size() > SemanticAnswerCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Ищет сохранённый ответ на похожий вопрос
+     * @return ответ, если нашёлся вопрос с близостью не ниже порога и запись не устарела
+     */
+    public Optional<String> lookup(String question) {
+        if (!isCacheable(question)) {
+            return Optional.empty();
+        }
+        lookups.incrementAndGet();
+        String key = normalize(question);
+        Embedding embedding = embed(key);
+        Instant now = Instant.now();
+
+        synchronized (entries) {
+            CachedAnswer exact = entries.get(key);
+            if (exact != null && !exact.isExpired(now, ttl)) {
+                hits.incrementAndGet();
+                return Optional.of(exact.answer());
+            }
+
+            String bestKey = null;
+            double bestSimilarity = similarityThreshold;
+            Iterator<Map.Entry<String, CachedAnswer>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, CachedAnswer> entry = iterator.next();
+                if (entry.getValue().isExpired(now, ttl)) {
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                    continue;
+                }
+                double similarity = CosineSimilarity.between(embedding, entry.getValue().embedding());
+                if (similarity >= bestSimilarity) {
+                    bestSimilarity = similarity;
+                    bestKey = entry.getKey();
+                }
+            }
+            if (bestKey == null) {
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            log.info("Ответ из семантического кэша, близость {} к вопросу '{}'", bestSimilarity, bestKey);
+            // get обновляет порядок доступа в LRU
+            return Optional.of(entries.get(bestKey).answer());
+        }
+    }
+
+    /**
+     * Сохраняет ответ ассистента на вопрос
+     */
+    public void put(String question, String answer) {
+        if (!isCacheable(question) || answer == null || answer.isBlank()) {
+            return;
+        }
+        String key = normalize(question);
+        CachedAnswer cachedAnswer = new CachedAnswer(embed(key), answer, Instant.now());
+        synchronized (entries) {
+            entries.put(key, cachedAnswer);
+        }
+        stores.incrementAndGet();
+    }
+
+    private boolean isCacheable(String question) {
+        return enabled && question != null && question.strip().length() >= minQuestionLength;
+    }
+
+    private Embedding embed(String text) {
+        long startNanos = System.nanoTime();
+        Embedding embedding = embeddingModel.embed(text).content();
+        embeddingTotalMillis.addAndGet(Duration.ofNanos(System.nanoTime() - startNanos).toMillis());
+        embeddings.incrementAndGet();
+        return embedding;
+    }
+
+    private String normalize(String question) {
+        return question.strip().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    public Map<String, Object> getStats() {
+        long lookupCount = lookups.get();
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return Map.of(
+                "enabled", enabled,
+                "size", size,
+                "maxEntries", maxEntries,
+                "lookups", lookupCount,
+                "hits", hits.get(),
+                "hitRate", lookupCount == 0 ? 0.0 : (double) hits.get() / lookupCount,
+                "stores", stores.get(),
+                "evictions", evictions.get(),
+                "avgEmbeddingMs", embeddings.get() == 0 ? 0 : embeddingTotalMillis.get() / embeddings.get()
+        );
+    }
+
+    private record CachedAnswer(Embedding embedding, String answer, Instant createdAt) {
+        boolean isExpired(Instant now, Duration ttl) {
+            return createdAt.plus(ttl).isBefore(now);
+        }
+    }
+}
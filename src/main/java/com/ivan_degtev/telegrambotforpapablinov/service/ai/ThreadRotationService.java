@@ -0,0 +1,150 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.ai;
+
+import com.ivan_degtev.telegrambotforpapablinov.mapper.OpenAiMapper;
+import com.ivan_degtev.telegrambotforpapablinov.service.impl.RedisServiceImpl;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Фоновая ротация переполненных тредов. Пока старый тред продолжает отвечать пользователю, в фоне собирается резюме
+ * и создается новый тред с этим резюме, затем указатель в редисе атомарно переключается на новый тред.
+ * Старый тред удаляется не сразу, а через old-thread-ttl-seconds, чтобы успели завершиться run, которые в нём уже идут.
+ */
+@Service
+@Slf4j
+public class ThreadRotationService {
+
+    private final OpenAiAssistantsClient openAiAssistantsClient;
+    private final OpenAiMemoryControlServiceImpl openAiMemoryControlService;
+    private final OpenAiMapper openAiMapper;
+    private final RedisServiceImpl redisService;
+    private final Duration oldThreadTtl;
+
+    private final ScheduledExecutorService executor;
+    private final Set<String> rotationsInFlight = ConcurrentHashMap.newKeySet();
+
+    private final static String SUMMARY_PREFIX = "Вот что мы обсудили на данный момент: ";
+    private final static Duration ROTATION_TIMEOUT = Duration.ofSeconds(120);
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong swapped = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lastRotationMillis = new AtomicLong();
+
+    public ThreadRotationService(
+            OpenAiAssistantsClient openAiAssistantsClient,
+            OpenAiMemoryControlServiceImpl openAiMemoryControlService,
+            OpenAiMapper openAiMapper,
+            RedisServiceImpl redisService,
+            @Value("${openai.thread-rotation.threads:2}") int threads,
+            @Value("${openai.thread-rotation.old-thread-ttl-seconds:180}") long oldThreadTtlSeconds
+    ) {
+        this.openAiAssistantsClient = openAiAssistantsClient;
+        this.openAiMemoryControlService = openAiMemoryControlService;
+        this.openAiMapper = openAiMapper;
+        this.redisService = redisService;
+        this.oldThreadTtl = Duration.ofSeconds(oldThreadTtlSeconds);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "thread-rotation-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ставит ротацию треда пользователя в фон, если она ещё не идёт. Не блокирует вызывающий поток.
+     * Вызывается тем, кто занял блокировку ротации в редисе, после ротации блокировка снимается
+     * @return true, если ротация запущена этим вызовом
+     */
+    public boolean requestRotation(String fromId) {
+        if (!rotationsInFlight.add(fromId)) {
+            return false;
+        }
+        started.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                rotate(fromId);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                // блокировка снимается, чтобы следующее сообщение пользователя повторило ротацию
+                redisService.releaseRotationLock(fromId);
+                log.error("Ошибка фоновой ротации треда пользователя {}: {}", fromId, e.getMessage(), e);
+            } finally {
+                rotationsInFlight.remove(fromId);
+            }
+        });
+        return true;
+    }
+
+    private void rotate(String fromId) {
+        long startNanos = System.nanoTime();
+        String oldThreadId = redisService.getUserThread(fromId);
+        if (oldThreadId == null) {
+            redisService.releaseRotationLock(fromId);
+            return;
+        }
+
+        String newThreadId = openAiMemoryControlService.generateSummary(oldThreadId, fromId)
+                .map(openAiMapper::extractChatCompletionContent)
+                .flatMap(summary -> openAiAssistantsClient.createThread(List.of(
+                        Map.of("role", "assistant", "content", SUMMARY_PREFIX + summary)
+                )))
+                .map(openAiMapper::extractIdAfterCreateResponseMessage)
+                .block(ROTATION_TIMEOUT);
+        if (newThreadId == null || newThreadId.isEmpty()) {
+            throw new IllegalStateException("Не удалось создать новый тред для пользователя " + fromId);
+        }
+
+        if (redisService.swapUserThread(fromId, oldThreadId, newThreadId)) {
+            swapped.incrementAndGet();
+            executor.schedule(() -> deleteThread(oldThreadId), oldThreadTtl.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            // пока собиралось резюме, тред пользователя сменили или удалили - подготовленный тред больше не нужен
+            discarded.incrementAndGet();
+            redisService.releaseRotationLock(fromId);
+            deleteThread(newThreadId);
+        }
+        long millis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+        lastRotationMillis.set(millis);
+        log.info("Ротация треда пользователя {} заняла {} мс, новый тред {}", fromId, millis, newThreadId);
+    }
+
+    private void deleteThread(String threadId) {
+        try {
+            openAiAssistantsClient.deleteThread(threadId).block(ROTATION_TIMEOUT);
+        } catch (Exception e) {
+            log.warn("Не удалось удалить тред {}: {}", threadId, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of(
+                "inFlight", rotationsInFlight.size(),
+                "started", started.get(),
+                "swapped", swapped.get(),
+                "discarded", discarded.get(),
+                "failed", failed.get(),
+                "lastRotationMs", lastRotationMillis.get()
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
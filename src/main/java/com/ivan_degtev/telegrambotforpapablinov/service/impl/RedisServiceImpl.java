@@ -1,102 +1,264 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.impl;
 
 import com.ivan_degtev.telegrambotforpapablinov.dto.TYPE_REQUEST;
-import com.ivan_degtev.telegrambotforpapablinov.service.UpdateIdService;
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.HashOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 @Service
 @Slf4j
 @RequiredArgsConstructor
-public class RedisServiceImpl implements UpdateIdService {
+public class RedisServiceImpl {
 
     private final RedisTemplate<String, Object> redisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
 
     private static final String UPDATE_ID_PREFIX = "update_id:";
-    private static final String TYPE_REQUEST_FROM_ID = "from_id:";
+    private static final String UPDATE_ID_HIGH_WATER_MARK_KEY = "update_id:hwm";
+    private static final Duration UPDATE_ID_TTL = Duration.ofHours(24);
 
-    private static final String ID_ACTUAL_THREAD = "user:threads:";
-    private static final String MESSAGES_COUNT_KEY = "user:messagesCount:";
+    /**
+     * Состояние пользователя - один хэш с полями type, type_until, thread, count. Ключи и значения - обычные строки
+     */
+    private static final String USER_SESSION_KEY = "user:session:";
+    private static final String TYPE_FIELD = "type";
+    private static final String TYPE_UNTIL_FIELD = "type_until";
+    private static final String THREAD_FIELD = "thread";
+    private static final String COUNT_FIELD = "count";
+    private static final Duration TYPE_REQUEST_TTL = Duration.ofHours(72);
+
+    /**
+     * Старые раздельные ключи(json-сериализация), читаются только для переноса состояния в хэш
+     */
+    private static final String LEGACY_TYPE_REQUEST_FROM_ID = "from_id:";
+    private static final String LEGACY_ID_ACTUAL_THREAD = "user:threads:";
+    private static final String LEGACY_MESSAGES_COUNT_KEY = "user:messagesCount:";
+
+    private static final String ROTATION_LOCK_KEY = "user:rotation:";
+
+    /**
+     * Хэш путь файла -> "sha-256 содержимого:file_id телеграма" для повторной отправки документов без загрузки
+     */
+    private static final String TELEGRAM_FILE_IDS_KEY = "telegram:file_ids";
+
+    /**
+     * Инкремент счетчика сообщений и решение о ротации за один запрос. Когда лимит достигнут, счетчик не растет,
+     * а вызов пытается занять блокировку ротации(SET NX EX) - её получает ровно один вызов, в том числе из разных
+     * инстансов бота
+     */
+    private static final RedisScript<Long> INCREMENT_COUNT_SCRIPT = new DefaultRedisScript<>("""
+            local count = tonumber(redis.call('HGET', KEYS[1], 'count')) or 0
+            if count >= tonumber(ARGV[1]) then
+                if redis.call('SET', KEYS[2], '1', 'NX', 'EX', tonumber(ARGV[2])) then
+                    return -1
+                end
+                return count
+            end
+            return redis.call('HINCRBY', KEYS[1], 'count', 1)
+            """, Long.class);
+
+    private static final RedisScript<Long> RAISE_HIGH_WATER_MARK_SCRIPT = new DefaultRedisScript<>("""
+            local current = tonumber(redis.call('GET', KEYS[1])) or -1
+            if tonumber(ARGV[1]) > current then
+                redis.call('SET', KEYS[1], ARGV[1])
+                return tonumber(ARGV[1])
+            end
+            return current
+            """, Long.class);
+
+    private static final RedisScript<Long> SWAP_THREAD_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('HGET', KEYS[1], 'thread') == ARGV[1] then
+                redis.call('HSET', KEYS[1], 'thread', ARGV[2], 'count', '1')
+                redis.call('DEL', KEYS[2])
+                return 1
+            end
+            return 0
+            """, Long.class);
 
     /**
-     * Для фильтрации множественной отправки дублей из нгрока, пропускает только 1 апдейт с уник айди
+     * Для фильтрации множественной отправки дублей из нгрока, пропускает только 1 апдейт с уник айди.
+     * Вызывается только для неоднозначных случаев, основная фильтрация - локально в UpdateIdServiceImpl
      * @param updateId
      * @return
      */
     public boolean isUniqueUpdateId(Long updateId) {
-        Boolean isNew = redisTemplate.opsForValue().setIfAbsent(UPDATE_ID_PREFIX + updateId, "1", Duration.ofHours(24));
+        Boolean isNew = stringRedisTemplate.opsForValue().setIfAbsent(UPDATE_ID_PREFIX + updateId, "1", UPDATE_ID_TTL);
         return Boolean.TRUE.equals(isNew);
     }
 
     /**
-     * Сохраняет тип запроса для каждою юзера - нужно для понимая идет обычный диалог или запрос на выкачку файлов
+     * Максимальный обработанный update_id, -1 если он ещё не сохранялся
      */
-    public void saveUserRequestType(String fromId, TYPE_REQUEST typeRequest) {
-        redisTemplate.opsForValue().set(TYPE_REQUEST_FROM_ID + fromId, typeRequest, Duration.ofHours(72));
-        log.info("Сохранен тип запроса для пользователя {}: {}", fromId, typeRequest);
+    public long getUpdateIdHighWaterMark() {
+        String value = stringRedisTemplate.opsForValue().get(UPDATE_ID_HIGH_WATER_MARK_KEY);
+        return value != null ? Long.parseLong(value) : -1;
     }
 
     /**
-     * Возвращает текущий тип диалога для дальнейше работой с ллм
+     * Поднимает сохраненный максимум update_id, меньшее значение(например, от другого инстанса) не перезаписывает больший
      */
-    public TYPE_REQUEST getUserRequestType(String fromId) {
-        Object typeRequestObject = redisTemplate.opsForValue().get(TYPE_REQUEST_FROM_ID + fromId);
-
-        if (typeRequestObject != null) {
-            TYPE_REQUEST typeRequest = TYPE_REQUEST.valueOf(typeRequestObject.toString());
-            log.info("Найден тип запроса для пользователя {}: {}", fromId, typeRequest);
-            return typeRequest;
-        } else {
-            log.info("Тип запроса для пользователя {} не найден в Redis", fromId);
-            return TYPE_REQUEST.DEFAULT;
+    public void raiseUpdateIdHighWaterMark(long updateId) {
+        stringRedisTemplate.execute(RAISE_HIGH_WATER_MARK_SCRIPT, List.of(UPDATE_ID_HIGH_WATER_MARK_KEY), String.valueOf(updateId));
+    }
+
+    /**
+     * Всё состояние пользователя одним HGETALL. Если хэша ещё нет - один раз переносит в него старые раздельные ключи
+     */
+    public UserSessionState loadSession(String fromId) {
+        Map<String, String> fields = hash().entries(USER_SESSION_KEY + fromId);
+        if (fields.isEmpty()) {
+            fields = migrateLegacyKeys(fromId);
+        }
+        UserSessionState session = UserSessionState.empty(fromId);
+        if (fields.isEmpty()) {
+            return session;
+        }
+
+        String typeUntil = fields.get(TYPE_UNTIL_FIELD);
+        if (fields.get(TYPE_FIELD) != null
+                && (typeUntil == null || Long.parseLong(typeUntil) > System.currentTimeMillis())) {
+            session.setTypeRequest(TYPE_REQUEST.valueOf(fields.get(TYPE_FIELD)));
+        }
+        session.setThreadId(fields.get(THREAD_FIELD));
+        String count = fields.get(COUNT_FIELD);
+        session.setMessageCount(count != null ? Integer.parseInt(count) : 0);
+        log.info("Состояние пользователя {}: {}", fromId, session);
+        return session;
+    }
+
+    private Map<String, String> migrateLegacyKeys(String fromId) {
+        List<String> legacyKeys = List.of(
+                LEGACY_TYPE_REQUEST_FROM_ID + fromId,
+                LEGACY_ID_ACTUAL_THREAD + fromId,
+                LEGACY_MESSAGES_COUNT_KEY + fromId
+        );
+        List<Object> legacyValues = redisTemplate.opsForValue().multiGet(legacyKeys);
+        if (legacyValues == null || legacyValues.stream().allMatch(Objects::isNull)) {
+            return Map.of();
+        }
+
+        Map<String, String> fields = new HashMap<>();
+        if (legacyValues.get(0) != null) {
+            fields.put(TYPE_FIELD, legacyValues.get(0).toString());
+            fields.put(TYPE_UNTIL_FIELD, String.valueOf(System.currentTimeMillis() + TYPE_REQUEST_TTL.toMillis()));
         }
+        if (legacyValues.get(1) != null) {
+            fields.put(THREAD_FIELD, legacyValues.get(1).toString());
+        }
+        if (legacyValues.get(2) != null) {
+            fields.put(COUNT_FIELD, legacyValues.get(2).toString());
+        }
+        hash().putAll(USER_SESSION_KEY + fromId, fields);
+        redisTemplate.delete(legacyKeys);
+        log.info("Состояние пользователя {} перенесено в хэш: {}", fromId, fields);
+        return fields;
+    }
+
+    /**
+     * Сохраняет тип запроса для каждою юзера - нужно для понимая идет обычный диалог или запрос на выкачку файлов
+     */
+    public void saveUserRequestType(UserSessionState session, TYPE_REQUEST typeRequest) {
+        hash().putAll(USER_SESSION_KEY + session.getFromId(), Map.of(
+                TYPE_FIELD, typeRequest.name(),
+                TYPE_UNTIL_FIELD, String.valueOf(System.currentTimeMillis() + TYPE_REQUEST_TTL.toMillis())
+        ));
+        session.setTypeRequest(typeRequest);
+        log.info("Сохранен тип запроса для пользователя {}: {}", session.getFromId(), typeRequest);
     }
 
     /**
-     * Методы для сохранения данных о тредах для юзера и коол-ве сообщений, нужно для контроля и удаления старых тредов, когда кол-во сообщений в текущем превысит 10
+     * Методы для сохранения данных о тредах для юзера и коол-ве сообщений, нужно для контроля и удаления старых тредов, когда кол-во сообщений в текущем превысит 20
      */
     // Получение треда пользователя
     public String getUserThread(String fromId) {
-        return (String) redisTemplate.opsForValue().get(ID_ACTUAL_THREAD + fromId);
+        return hash().get(USER_SESSION_KEY + fromId, THREAD_FIELD);
     }
 
     // Сохранение треда пользователя
     public void setUserThread(String fromId, String threadId) {
-        redisTemplate.opsForValue().set(ID_ACTUAL_THREAD + fromId, threadId);
+        hash().put(USER_SESSION_KEY + fromId, THREAD_FIELD, threadId);
         log.info("Saved Thread ID in Redis: " + threadId);
     }
 
     // Получение количества сообщений пользователя
     public String getUserMessageCount(String fromId) {
-        String countStr = (String) redisTemplate.opsForValue().get(MESSAGES_COUNT_KEY + fromId);
-//        Integer count = countStr != null ? Integer.parseInt(countStr) : 0;
+        String countStr = hash().get(USER_SESSION_KEY + fromId, COUNT_FIELD);
         log.info("Получил данные о кол-ве сообщений у конкретного юзера с id {} в треде из редиса {}", fromId, countStr);
         return countStr;
     }
 
-    // Инкремент количества сообщений
-    public void incrementUserMessageCount(String fromId) {
-        if (redisTemplate.opsForValue().get(MESSAGES_COUNT_KEY + fromId) == null) {
-            redisTemplate.opsForValue().set(MESSAGES_COUNT_KEY + fromId, "0");
-        }
-        redisTemplate.opsForValue().increment(MESSAGES_COUNT_KEY + fromId, 1);
+    // Сброс количества сообщений
+    public void resetUserMessageCount(String fromId) {
+        hash().put(USER_SESSION_KEY + fromId, COUNT_FIELD, "1");
     }
-    public void incrementUserMessageCount(String fromId, String currentCount) {
-        redisTemplate.opsForValue().set(MESSAGES_COUNT_KEY + fromId, currentCount);
+
+    /**
+     * Атомарно увеличивает счетчик сообщений в треде пользователя
+     * @param maxMessages - после этого кол-ва сообщений тред нужно ротировать
+     * @param rotationLockTtl - время жизни блокировки ротации, если ротация упадет, через это время её займет следующий вызов
+     * @return true, если тред переполнен и ротацию должен выполнить именно этот вызов
+     */
+    public boolean incrementMessageCountOrClaimRotation(String fromId, int maxMessages, Duration rotationLockTtl) {
+        Long result = stringRedisTemplate.execute(
+                INCREMENT_COUNT_SCRIPT,
+                List.of(USER_SESSION_KEY + fromId, ROTATION_LOCK_KEY + fromId),
+                String.valueOf(maxMessages), String.valueOf(rotationLockTtl.toSeconds())
+        );
+        log.info("Кол-во сообщений в треде пользователя {} после инкремента: {}", fromId, result);
+        return Long.valueOf(-1).equals(result);
     }
 
-    // Сброс количества сообщений
-    public void resetUserMessageCount(String fromId) {
-        redisTemplate.opsForValue().set(MESSAGES_COUNT_KEY + fromId, "1");
+    public void releaseRotationLock(String fromId) {
+        stringRedisTemplate.delete(ROTATION_LOCK_KEY + fromId);
+    }
+
+    /**
+     * Атомарная замена треда пользователя на новый(после фоновой ротации) со сбросом счетчика сообщений и снятием
+     * блокировки ротации.
+     * Замена происходит, только если в редисе всё ещё лежит expectedThreadId - иначе тред уже сменили или удалили
+     * @return true, если указатель на тред заменен
+     */
+    public boolean swapUserThread(String fromId, String expectedThreadId, String newThreadId) {
+        Long swapped = stringRedisTemplate.execute(
+                SWAP_THREAD_SCRIPT,
+                List.of(USER_SESSION_KEY + fromId, ROTATION_LOCK_KEY + fromId),
+                expectedThreadId, newThreadId
+        );
+        boolean result = Long.valueOf(1).equals(swapped);
+        log.info("Замена треда {} на {} для пользователя {}: {}", expectedThreadId, newThreadId, fromId, result);
+        return result;
     }
 
     // Удаление старого треда и связанной информации
     public void deleteOldThread(String fromId) {
-        redisTemplate.delete(ID_ACTUAL_THREAD + fromId);
-        redisTemplate.delete(MESSAGES_COUNT_KEY + fromId);
+        hash().delete(USER_SESSION_KEY + fromId, THREAD_FIELD, COUNT_FIELD);
+    }
+
+    public String getTelegramFileId(String filePath) {
+        return hash().get(TELEGRAM_FILE_IDS_KEY, filePath);
+    }
+
+    public void saveTelegramFileId(String filePath, String hashAndFileId) {
+        hash().put(TELEGRAM_FILE_IDS_KEY, filePath, hashAndFileId);
+    }
+
+    public void deleteTelegramFileId(String filePath) {
+        hash().delete(TELEGRAM_FILE_IDS_KEY, filePath);
+    }
+
+    private HashOperations<String, String, String> hash() {
+        return stringRedisTemplate.opsForHash();
     }
 }
@@ -1,5 +1,7 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.impl;
 
+import com.ivan_degtev.telegrambotforpapablinov.component.WebhookUpdateDispatcher;
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.dto.mapping.WebhookPayloadDto;
 import com.ivan_degtev.telegrambotforpapablinov.mapper.WebhookMapper;
 import com.ivan_degtev.telegrambotforpapablinov.service.TelegramService;
@@ -19,16 +21,29 @@ public class TelegramServiceImpl implements TelegramService {
     private final OpenAiServiceImpl openAiServiceImpl;
     private final TriggersForBotService triggersForBotService;
     private final UpdateIdService updateIdService;
+    private final WebhookUpdateDispatcher webhookUpdateDispatcher;
+    private final RedisServiceImpl redisService;
 
     @Override
-    public void getNewMessagesFromWebhook(String payload) {
+    public boolean getNewMessagesFromWebhook(String payload) {
         WebhookPayloadDto webhookPayloadDto = webhookMapper.convertStringToWebhookPayload(payload);
 
         if (webhookPayloadDto == null || webhookPayloadDto.getMessage() == null) {
-            log.warn("Не удалось обработать сообщение для следующей отправке в LLM: отсутствует поле message {}", webhookPayloadDto.toString());
-            return;
+            log.warn("Не удалось обработать сообщение для следующей отправке в LLM: отсутствует поле message {}", webhookPayloadDto);
+            return true;
         }
 
+        WebhookPayloadDto.UserDto from = webhookPayloadDto.getMessage().getFrom();
+        String fromId = String.valueOf(from != null ? from.getId() : webhookPayloadDto.getMessage().getChat().getId());
+        return webhookUpdateDispatcher.dispatch(fromId, () -> processUpdate(webhookPayloadDto));
+    }
+
+    /**
+     * Обработка апдейта в потоке диспетчера, апдейты одного юзера приходят сюда последовательно. Состояние пользователя
+     * читается из редиса один раз здесь(а не в потоке веб-хука), чтобы видеть изменения от предыдущего апдейта, и
+     * передаётся дальше по цепочке
+     */
+    private void processUpdate(WebhookPayloadDto webhookPayloadDto) {
         // Проверка уникальности update_id, чтоб избежать дублирующих данных с веб-хука
         Long updateId = webhookPayloadDto.getUpdateId();
         if (!updateIdService.isUniqueUpdateId(updateId)) {
@@ -43,13 +58,14 @@ public class TelegramServiceImpl implements TelegramService {
         if (textMessage != null && !textMessage.isEmpty()) {
             if (triggersForBotService.handleMessage(webhookPayloadDto)) {
                 Long replayMessageId = triggersForBotService.getIdMessageForReplay(webhookPayloadDto);
+                UserSessionState session = redisService.loadSession(fromId);
 
-                triggersForBotService.isSearchRequest(fromId, textMessage);
+                triggersForBotService.isSearchRequest(session, textMessage);
 
-                boolean commandExist = triggersForBotService.searchAndHandleCommand(webhookPayloadDto);
+                boolean commandExist = triggersForBotService.searchAndHandleCommand(webhookPayloadDto, session);
 
                 if (!commandExist) {
-                    openAiServiceImpl.getAnswerFromLlm(chatId, fromId, textMessage, replayMessageId);
+                    openAiServiceImpl.getAnswerFromLlm(chatId, session, textMessage, replayMessageId);
                     log.info("Команд не было в сообщение - оно ушло в обработку LLM {}", textMessage);
                 }
                 log.info("Были оправлены сообщения команд в чат");
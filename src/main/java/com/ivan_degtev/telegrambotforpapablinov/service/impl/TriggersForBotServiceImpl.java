@@ -2,9 +2,11 @@ package com.ivan_degtev.telegrambotforpapablinov.service.impl;
 
 import com.ivan_degtev.telegrambotforpapablinov.component.TelegramWebhookConfiguration;
 import com.ivan_degtev.telegrambotforpapablinov.dto.TYPE_REQUEST;
+import com.ivan_degtev.telegrambotforpapablinov.dto.UserSessionState;
 import com.ivan_degtev.telegrambotforpapablinov.dto.mapping.WebhookPayloadDto;
 import com.ivan_degtev.telegrambotforpapablinov.service.TriggersForBotService;
 import com.ivan_degtev.telegrambotforpapablinov.service.ai.ProcessingRegularRequestsService;
+import dev.langchain4j.memory.chat.ChatMemoryProvider;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -61,7 +63,7 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
             """;
 
     private final static String CLEAN_YOUR_MEMORY = """
-            Память диалога очищена на стороне Open AI. Теперь Искусственный Интеллект не будет помнить о вашем предыдущем разговоре. Можете начать его с начала!
+            Память диалога очищена. Теперь Искусственный Интеллект не будет помнить о вашем предыдущем разговоре. Можете начать его с начала!
             """;
 
     private final static String UNKNOWN_MESSAGE = """
@@ -69,14 +71,14 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
             или отправьте заново ваше сообщение без символов "/". Спасибо!
             """;
     private final ProcessingRegularRequestsService processingRegularRequestsService;
+    private final ChatMemoryProvider chatMemoryProvider;
 
 
     @Override
-    public boolean searchAndHandleCommand(WebhookPayloadDto webhookPayloadDto) {
+    public boolean searchAndHandleCommand(WebhookPayloadDto webhookPayloadDto, UserSessionState session) {
         if (webhookPayloadDto.getMessage().getEntities() != null &&
                 webhookPayloadDto.getMessage().getEntities().get(0).getType().equals("bot_command")) {
             String textMessage = webhookPayloadDto.getMessage().getText();
-            String fromId = String.valueOf(webhookPayloadDto.getMessage().getFrom().getId());
             String chatId = String.valueOf(webhookPayloadDto.getMessage().getChat().getId());
             Long replayMessageId = getIdMessageForReplay(webhookPayloadDto);
 
@@ -86,7 +88,7 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
                 String command = matcher.group();
                 log.info("Найдена команда: {}", command);
 
-                processCommand(fromId, chatId, replayMessageId, command);
+                processCommand(session, chatId, replayMessageId, command);
             }
             return true;
         }
@@ -96,7 +98,7 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
     /**
      * Метод для обработки команд
      */
-    private void processCommand(String fromId, String chatId, Long replayMessageId, String command) {
+    private void processCommand(UserSessionState session, String chatId, Long replayMessageId, String command) {
         switch (command.toLowerCase()) {
             case "/start":
                 log.info("Обработка команды /start");
@@ -108,17 +110,21 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
                 return;
             case "/question":
                 log.info("Обработка команды /question");
-                redisService.saveUserRequestType(fromId, TYPE_REQUEST.REGULAR);
+                redisService.saveUserRequestType(session, TYPE_REQUEST.REGULAR);
                 telegramWebhookConfiguration.sendResponseMessage(chatId, QUESTION_MESSAGE, replayMessageId);
                 return;
             case "/search":
                 log.info("Обработка команды /search");
-                redisService.saveUserRequestType(fromId, TYPE_REQUEST.SEARCH);
+                redisService.saveUserRequestType(session, TYPE_REQUEST.SEARCH);
                 telegramWebhookConfiguration.sendResponseMessage(chatId, SEARCH_MESSAGE, replayMessageId);
                 return;
             case "/clean_your_memory":
                 log.info("Обработка команды /clean_your_memory");
-                processingRegularRequestsService.deleteOldThread(fromId);
+                // тред open ai есть только у тех, кто спрашивал через ассистента, память langchain4j - у режима local
+                processingRegularRequestsService.deleteOldThread(session.getFromId());
+                chatMemoryProvider.get(session.getFromId()).clear();
+                session.setThreadId(null);
+                session.setMessageCount(0);
                 telegramWebhookConfiguration.sendResponseMessage(chatId, CLEAN_YOUR_MEMORY, replayMessageId);
                 return;
             case "/help":
@@ -158,9 +164,9 @@ public class TriggersForBotServiceImpl implements TriggersForBotService {
     }
 
     @Override
-    public void isSearchRequest(String fromId, String textMessage) {
+    public void isSearchRequest(UserSessionState session, String textMessage) {
         if(textMessage != null && textMessage.toLowerCase().contains("@search")) {
-            redisService.saveUserRequestType(fromId, TYPE_REQUEST.SEARCH);
+            redisService.saveUserRequestType(session, TYPE_REQUEST.SEARCH);
         }
     }
 
@@ -0,0 +1,144 @@
+package com.ivan_degtev.telegrambotforpapablinov.service.impl;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.UpdateIdService;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Двухуровневая фильтрация дублей update_id. update_id телеграма растут монотонно, поэтому большинство апдейтов решается
+ * локально: id из окна последних window апдейтов - дубль, id больше максимального виденного(high-water mark) - новый.
+ * В редис идут только неоднозначные случаи: id ниже максимума, которого нет в окне, и первые апдейты после старта,
+ * пока максимум ещё не известен. Сам максимум сохраняется в редис раз в hwm-flush-interval-ms и при остановке,
+ * чтобы после перезапуска повторы старых апдейтов не обрабатывались заново.
+ * Апдейты выше максимума принимаются без записи ключа в редис, поэтому гарантия - at-least-once: при падении процесса
+ * апдейты, принятые после последнего сохранения максимума(не больше hwm-flush-interval-ms), телеграм пришлёт повторно
+ * и они будут обработаны ещё раз. При штатной остановке максимум сохраняется и окна повторной обработки нет.
+ */
+@Service
+@Slf4j
+public class UpdateIdServiceImpl implements UpdateIdService {
+
+    private final RedisServiceImpl redisService;
+    private final int window;
+
+    private final LinkedHashMap<Long, Boolean> recentUpdateIds;
+    private final AtomicLong highWaterMark = new AtomicLong(-1);
+    private final AtomicLong flushedHighWaterMark = new AtomicLong(-1);
+    private final ScheduledExecutorService flusher;
+    private boolean highWaterMarkLoaded;
+
+    private final AtomicLong localDuplicates = new AtomicLong();
+    private final AtomicLong localAccepted = new AtomicLong();
+    private final AtomicLong redisChecks = new AtomicLong();
+    private final AtomicLong redisDuplicates = new AtomicLong();
+
+    public UpdateIdServiceImpl(
+            RedisServiceImpl redisService,
+            @Value("${telegram.dedupe.window:10000}") int window,
+            @Value("${telegram.dedupe.hwm-flush-interval-ms:5000}") long flushIntervalMs
+    ) {
+        this.redisService = redisService;
+        this.window = window;
+        this.recentUpdateIds = new LinkedHashMap<>(window * 4 / 3 + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > UpdateIdServiceImpl.this.window;
+            }
+        };
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "update-id-hwm-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushHighWaterMark, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isUniqueUpdateId(Long updateId) {
+        synchronized (recentUpdateIds) {
+            if (recentUpdateIds.containsKey(updateId)) {
+                localDuplicates.incrementAndGet();
+                return false;
+            }
+            long currentMark = knownHighWaterMark();
+            // ключ в редис не пишется, после падения такой апдейт может прийти повторно(см. описание класса)
+            if (currentMark >= 0 && updateId > currentMark) {
+                remember(updateId);
+                localAccepted.incrementAndGet();
+                return true;
+            }
+        }
+
+        // неоднозначный случай - id не выше максимума и выпал из окна(или максимум ещё не известен)
+        redisChecks.incrementAndGet();
+        boolean unique = redisService.isUniqueUpdateId(updateId);
+        synchronized (recentUpdateIds) {
+            remember(updateId);
+        }
+        if (!unique) {
+            redisDuplicates.incrementAndGet();
+        }
+        return unique;
+    }
+
+    private void remember(Long updateId) {
+        recentUpdateIds.put(updateId, Boolean.TRUE);
+        highWaterMark.accumulateAndGet(updateId, Math::max);
+    }
+
+    /**
+     * Максимум, сохраненный в редис прошлым запуском, подтягивается один раз при первом апдейте. Если его нет(-1),
+     * первый апдейт проверяется через редис и становится начальным максимумом. Вызывается под блокировкой окна
+     */
+    private long knownHighWaterMark() {
+        long currentMark = highWaterMark.get();
+        if (currentMark < 0 && !highWaterMarkLoaded) {
+            long storedMark = redisService.getUpdateIdHighWaterMark();
+            highWaterMarkLoaded = true;
+            flushedHighWaterMark.set(storedMark);
+            highWaterMark.accumulateAndGet(storedMark, Math::max);
+            log.info("Загружен максимальный update_id из редиса: {}", storedMark);
+            return highWaterMark.get();
+        }
+        return currentMark;
+    }
+
+    private void flushHighWaterMark() {
+        long currentMark = highWaterMark.get();
+        if (currentMark <= flushedHighWaterMark.get()) {
+            return;
+        }
+        try {
+            redisService.raiseUpdateIdHighWaterMark(currentMark);
+            flushedHighWaterMark.set(currentMark);
+        } catch (Exception e) {
+            log.warn("Не удалось сохранить максимальный update_id {}: {}", currentMark, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of(
+                "highWaterMark", highWaterMark.get(),
+                "window", window,
+                "localDuplicates", localDuplicates.get(),
+                "localAccepted", localAccepted.get(),
+                "redisChecks", redisChecks.get(),
+                "redisDuplicates", redisDuplicates.get()
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdownNow();
+        flushHighWaterMark();
+    }
+}
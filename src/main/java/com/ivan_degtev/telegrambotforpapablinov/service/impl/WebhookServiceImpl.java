@@ -1,5 +1,6 @@
 package com.ivan_degtev.telegrambotforpapablinov.service.impl;
 
+import com.ivan_degtev.telegrambotforpapablinov.component.HttpConnectorRegistry;
 import com.ivan_degtev.telegrambotforpapablinov.config.BotConfig;
 import com.ivan_degtev.telegrambotforpapablinov.service.WebhookService;
 import org.springframework.stereotype.Service;
@@ -12,9 +13,12 @@ public class WebhookServiceImpl implements WebhookService {
     private final BotConfig botConfig;
     private final WebClient webClient;
 
-    public WebhookServiceImpl(BotConfig botConfig) {
+    public WebhookServiceImpl(BotConfig botConfig, HttpConnectorRegistry httpConnectorRegistry) {
         this.botConfig = botConfig;
-        this.webClient = WebClient.builder().baseUrl("https://api.telegram.org").build();
+        this.webClient = WebClient.builder()
+                .baseUrl("https://api.telegram.org")
+                .clientConnector(httpConnectorRegistry.connector("telegram"))
+                .build();
     }
 
     public String createWebhook() {
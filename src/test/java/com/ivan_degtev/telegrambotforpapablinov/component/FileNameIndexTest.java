@@ -0,0 +1,100 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileNameIndexTest {
+
+    private final static Path DIRECTORY = Path.of("app", "files");
+
+    private FileNameIndex fileNameIndex;
+
+    @BeforeEach
+    void setUp() {
+        // каталог нужен только в init(), файлы добавляются напрямую через подписку
+        fileNameIndex = new FileNameIndex(null, 0.5);
+        index("1.10. Стандарты обслуживания.pdf");
+        index("1.10.1. Регламент работы кассы.pdf");
+        index("1.10.2. Регламент приёмки товара.docx");
+        index("1.2. Должностная инструкция повара.pdf");
+        index("Меню сезонное.xlsx");
+    }
+
+    @Test
+    void sameNameWithoutExtensionScoresOne() {
+        List<FileNameIndex.Match> matches = fileNameIndex.search("меню СЕЗОННОЕ", 5);
+
+        assertEquals(file("Меню сезонное.xlsx"), matches.get(0).file());
+        assertEquals(1.0, matches.get(0).score(), 1e-9);
+    }
+
+    @Test
+    void typoStillFindsFileByTrigrams() {
+        List<FileNameIndex.Match> matches = fileNameIndex.search("регламнет работы касы", 5);
+
+        assertEquals(file("1.10.1. Регламент работы кассы.pdf"), matches.get(0).file());
+        assertTrue(matches.get(0).score() < 1.0);
+    }
+
+    @Test
+    void diceCoefficientOfTrigramSets() {
+        // " ab", "abc", "bc " против " ab", "abd", "bd ": общая одна триграмма из 3 + 3
+        FileNameIndex index = new FileNameIndex(null, 0);
+        index.onFileChanged(DIRECTORY.resolve("abd.pdf"));
+
+        List<FileNameIndex.Match> matches = index.search("abc", 5);
+
+        assertEquals(1, matches.size());
+        assertEquals(2.0 * 1 / (3 + 3), matches.get(0).score(), 1e-9);
+    }
+
+    @Test
+    void numberPrefixFindsSectionAndNestedDocuments() {
+        List<FileNameIndex.Match> matches = fileNameIndex.search("1.10", 5);
+
+        assertEquals(List.of(
+                file("1.10. Стандарты обслуживания.pdf"),
+                file("1.10.1. Регламент работы кассы.pdf"),
+                file("1.10.2. Регламент приёмки товара.docx")
+        ), matches.stream().map(FileNameIndex.Match::file).toList());
+        assertEquals(1.0, matches.get(0).score(), 1e-9);
+        assertEquals(0.75, matches.get(1).score(), 1e-9);
+    }
+
+    @Test
+    void numberPrefixWithTextCombinesBothScores() {
+        List<FileNameIndex.Match> matches = fileNameIndex.search("1.10.1. Регламент работы кассы", 5);
+
+        assertEquals(file("1.10.1. Регламент работы кассы.pdf"), matches.get(0).file());
+        assertEquals(1.0, matches.get(0).score(), 1e-9);
+        assertTrue(matches.stream().noneMatch(match -> match.file().equals(file("1.2. Должностная инструкция повара.pdf"))));
+    }
+
+    @Test
+    void unrelatedQueryFindsNothing() {
+        assertTrue(fileNameIndex.search("отпуск сотрудников", 5).isEmpty());
+        assertTrue(fileNameIndex.search("3.4", 5).isEmpty());
+    }
+
+    @Test
+    void removedFileIsNoLongerFound() {
+        fileNameIndex.onFileRemoved(file("Меню сезонное.xlsx"));
+
+        assertTrue(fileNameIndex.search("меню сезонное", 5).isEmpty());
+        assertEquals(4, fileNameIndex.getStats().get("files"));
+    }
+
+    private void index(String fileName) {
+        fileNameIndex.onFileChanged(file(fileName));
+    }
+
+    private Path file(String fileName) {
+        return DIRECTORY.resolve(fileName);
+    }
+}
@@ -0,0 +1,120 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.mapper.ChatMessageBinaryMapper;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentChatMemoryStoreTest {
+
+    private final static String MEMORY_ID = "test-memory-1";
+
+    @TempDir
+    Path directory;
+
+    private PersistentChatMemoryStore store;
+
+    private final ChatMessage instruction = SystemMessage.from("Инструкция");
+    private final ChatMessage question = UserMessage.from("Где регламент?");
+    private final ChatMessage answer = AiMessage.from("В разделе 1.10.1");
+    private final ChatMessage nextQuestion = UserMessage.from("А приёмка?");
+    private final ChatMessage nextAnswer = AiMessage.from("В разделе 1.10.2");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = open(64);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void appendWritesOnlyNewMessages() {
+        store.updateMessages(MEMORY_ID, List.of(instruction, question));
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+
+        assertEquals(List.of(instruction, question, answer), store.getMessages(MEMORY_ID));
+        assertCounters(3, 2, 0);
+    }
+
+    @Test
+    void evictedMessagesAreRemovedAndRestKept() {
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+        // окно вытеснило первый вопрос с ответом и дописало новый вопрос
+        store.updateMessages(MEMORY_ID, List.of(instruction, nextQuestion));
+
+        assertEquals(List.of(instruction, nextQuestion), store.getMessages(MEMORY_ID));
+        assertCounters(4, 1, 2);
+    }
+
+    @Test
+    void changedMessageInTheMiddleIsRewrittenWithEverythingAfterIt() {
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+        ChatMessage strippedQuestion = UserMessage.from("Где?");
+        store.updateMessages(MEMORY_ID, List.of(instruction, strippedQuestion, answer));
+
+        assertEquals(List.of(instruction, strippedQuestion, answer), store.getMessages(MEMORY_ID));
+        assertCounters(5, 1, 2);
+    }
+
+    @Test
+    void windowIsReadBackFromDiskInOrder() throws IOException {
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+        store.updateMessages(MEMORY_ID, List.of(instruction, answer, nextQuestion, nextAnswer));
+        store.close();
+
+        store = open(64);
+
+        assertEquals(List.of(instruction, answer, nextQuestion, nextAnswer), store.getMessages(MEMORY_ID));
+        assertEquals(1L, store.getStats().get("cacheMisses"));
+    }
+
+    @Test
+    void diffUsesJournalKeysWhenWindowIsNotCached() throws IOException {
+        // лимит кэша 0 - окно другого чата вытесняет окно MEMORY_ID, следующее обновление читает ключи с диска
+        store.close();
+        store = open(0);
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+        store.updateMessages("test-memory-2", List.of(question));
+        store.updateMessages(MEMORY_ID, List.of(instruction, answer, nextQuestion));
+
+        assertEquals(List.of(instruction, answer, nextQuestion), store.getMessages(MEMORY_ID));
+        assertTrue((Long) store.getStats().get("cacheEvictions") > 0);
+    }
+
+    @Test
+    void deleteRemovesWholeWindow() {
+        store.updateMessages(MEMORY_ID, List.of(instruction, question, answer));
+        store.deleteMessages(MEMORY_ID);
+
+        assertTrue(store.getMessages(MEMORY_ID).isEmpty());
+        assertEquals(3L, store.getStats().get("removedMessages"));
+    }
+
+    private PersistentChatMemoryStore open(long cacheMaxWeightMb) throws IOException {
+        return new PersistentChatMemoryStore(new ChatMessageBinaryMapper(), directory.toString(), 2, false,
+                60, 1000, cacheMaxWeightMb);
+    }
+
+    private void assertCounters(long appended, long kept, long removed) {
+        Map<String, Object> stats = store.getStats();
+        assertEquals(appended, stats.get("appendedMessages"));
+        assertEquals(kept, stats.get("keptMessages"));
+        assertEquals(removed, stats.get("removedMessages"));
+    }
+}
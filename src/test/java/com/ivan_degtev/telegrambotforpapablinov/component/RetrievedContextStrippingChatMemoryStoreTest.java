@@ -0,0 +1,42 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.store.memory.chat.InMemoryChatMemoryStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RetrievedContextStrippingChatMemoryStoreTest {
+
+    @Test
+    void onlyLastQuestionKeepsFragmentsInMessageWindow() {
+        ChatMemory memory = MessageWindowChatMemory.builder()
+                .id("42")
+                .maxMessages(100)
+                .chatMemoryStore(new RetrievedContextStrippingChatMemoryStore(new InMemoryChatMemoryStore()))
+                .build();
+
+        memory.add(augmented("Где регламент кассы?"));
+        memory.add(AiMessage.from("В разделе 1.10.1"));
+        memory.add(augmented("А приёмки?"));
+
+        List<ChatMessage> messages = memory.messages();
+        assertEquals(UserMessage.from("Где регламент кассы?"), messages.get(0));
+        assertEquals(AiMessage.from("В разделе 1.10.1"), messages.get(1));
+        assertEquals(augmented("А приёмки?"), messages.get(2));
+
+        memory.add(AiMessage.from("В разделе 1.10.2"));
+        assertEquals(UserMessage.from("А приёмки?"), memory.messages().get(2));
+    }
+
+    private UserMessage augmented(String question) {
+        return UserMessage.from(question + "\n\n" + DocumentContentRetriever.CONTEXT_HEADER + "\nfile_name: Регламент.pdf\nфрагмент");
+    }
+}
@@ -0,0 +1,173 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.Assistant;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.ChatHistorySummarizer;
+import com.ivan_degtev.telegrambotforpapablinov.service.ai.DocumentContentRetriever;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.openai.OpenAiChatModelName;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import dev.langchain4j.store.memory.chat.InMemoryChatMemoryStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class SummarizingTokenWindowChatMemoryTest {
+
+    private final static String MEMORY_ID = "42";
+    private final static int MAX_TOKENS = 2000;
+    private final static int FRAGMENTS = 5;
+    private final static int FRAGMENT_LENGTH = 600;
+
+    private final Tokenizer tokenizer = new OpenAiTokenizer(OpenAiChatModelName.GPT_3_5_TURBO);
+    private final ChatHistorySummarizer summarizer = mock(ChatHistorySummarizer.class);
+    private SummarizingTokenWindowChatMemory memory;
+
+    @BeforeEach
+    void setUp() {
+        memory = new SummarizingTokenWindowChatMemory(MEMORY_ID, MAX_TOKENS, 0.6, 300, tokenizer,
+                new InMemoryChatMemoryStore(), summarizer);
+        memory.add(SystemMessage.from(Assistant.SYSTEM_MESSAGE.replace("{{currentChatId}}", MEMORY_ID)));
+    }
+
+    @Test
+    void retrievedFragmentsDoNotCountAgainstHistoryBudget() {
+        UserMessage augmented = augmentedQuestion(0);
+        assertTrue(tokenizer.estimateTokenCountInMessage(augmented) > 1200, "фрагменты должны быть реалистичного размера");
+
+        for (int turn = 0; turn < 3; turn++) {
+            memory.add(augmentedQuestion(turn));
+            memory.add(AiMessage.from(answer(turn)));
+        }
+        UserMessage lastQuestion = augmentedQuestion(3);
+        memory.add(lastQuestion);
+
+        List<ChatMessage> messages = memory.messages();
+        // инструкция + 3 полных обмена + текущий вопрос: ничего не вытеснено и сводка не строилась
+        assertEquals(1 + 3 * 2 + 1, messages.size());
+        verifyNoInteractions(summarizer);
+        assertEquals(lastQuestion, messages.get(messages.size() - 1));
+        for (int i = 1; i < messages.size() - 1; i += 2) {
+            assertEquals(UserMessage.from(question(i / 2)), messages.get(i));
+        }
+    }
+
+    @Test
+    void overflowEvictsOnlyOldestHistory() {
+        memory = new SummarizingTokenWindowChatMemory(MEMORY_ID, MAX_TOKENS, 0.6, 300, tokenizer,
+                new InMemoryChatMemoryStore(), null);
+        memory.add(SystemMessage.from(Assistant.SYSTEM_MESSAGE.replace("{{currentChatId}}", MEMORY_ID)));
+        for (int turn = 0; turn < 12; turn++) {
+            memory.add(augmentedQuestion(turn));
+            memory.add(AiMessage.from(answer(turn)));
+        }
+        memory.add(augmentedQuestion(12));
+
+        List<ChatMessage> messages = memory.messages();
+        assertTrue(messages.get(0) instanceof SystemMessage);
+        assertTrue(messages.size() > 4, "после вытеснения должна остаться часть истории, а не только текущий вопрос");
+        assertEquals(augmentedQuestion(12), messages.get(messages.size() - 1));
+        int historyTokens = tokenizer.estimateTokenCountInMessages(messages.subList(0, messages.size() - 1));
+        assertTrue(historyTokens <= MAX_TOKENS);
+    }
+
+    @Test
+    void summaryIsBuiltOutsideAddAndPlacedAfterInstruction() {
+        List<Runnable> folds = queueFolds();
+        when(summarizer.summarize(any(), anyList(), anyInt())).thenReturn(Optional.of("Пользователь спрашивал про приёмку"));
+
+        int turn = 0;
+        while (folds.isEmpty()) {
+            memory.add(augmentedQuestion(turn));
+            memory.add(AiMessage.from(answer(turn++)));
+        }
+        // вытеснение уже произошло, а модель ещё не вызывалась - add её не ждёт
+        verify(summarizer, never()).summarize(any(), anyList(), anyInt());
+        int sizeBeforeFold = memory.messages().size();
+
+        folds.remove(0).run();
+
+        List<ChatMessage> messages = memory.messages();
+        assertEquals(sizeBeforeFold + 1, messages.size());
+        assertEquals(SystemMessage.from("Краткое содержание предыдущей части разговора:\nПользователь спрашивал про приёмку"),
+                messages.get(1));
+        verify(summarizer).recordFold(anyLong(), eq(true));
+        verify(summarizer).summarize(isNull(), argThat(evicted -> evicted.get(0).equals(UserMessage.from(question(0)))), anyInt());
+    }
+
+    @Test
+    void summaryIsDiscardedWhenMemoryWasClearedMeanwhile() {
+        List<Runnable> folds = queueFolds();
+        when(summarizer.summarize(any(), anyList(), anyInt())).thenReturn(Optional.of("старая сводка"));
+        InMemoryChatMemoryStore store = new InMemoryChatMemoryStore();
+        memory = new SummarizingTokenWindowChatMemory(MEMORY_ID, MAX_TOKENS, 0.6, 300, tokenizer, store, summarizer);
+        int turn = 0;
+        while (folds.isEmpty()) {
+            memory.add(augmentedQuestion(turn));
+            memory.add(AiMessage.from(answer(turn++)));
+        }
+
+        // /clean_your_memory получает от провайдера другой объект окна
+        new SummarizingTokenWindowChatMemory(MEMORY_ID, MAX_TOKENS, 0.6, 300, tokenizer, store, summarizer).clear();
+        memory.add(augmentedQuestion(100));
+        folds.remove(0).run();
+
+        assertEquals(List.of(augmentedQuestion(100)), memory.messages());
+        verify(summarizer).recordFold(anyLong(), eq(false));
+    }
+
+    private List<Runnable> queueFolds() {
+        List<Runnable> folds = new ArrayList<>();
+        doAnswer(invocation -> folds.add(invocation.getArgument(0))).when(summarizer).submitFold(any());
+        return folds;
+    }
+
+    private UserMessage augmentedQuestion(int turn) {
+        String fragments = IntStream.range(0, FRAGMENTS)
+                .mapToObj(fragment -> fragment(turn, fragment))
+                .collect(Collectors.joining("\n\n"));
+        return UserMessage.from(question(turn) + "\n\n" + DocumentContentRetriever.CONTEXT_HEADER + "\n" + fragments);
+    }
+
+    private String question(int turn) {
+        return Assistant.USER_MESSAGE.replace("{{userMessage}}", "Какой порядок приёмки товара на точке №" + turn + "?").strip();
+    }
+
+    private String fragment(int turn, int fragment) {
+        StringBuilder text = new StringBuilder("file_name: 1.10.2. Регламент приёмки товара.pdf\n");
+        while (text.length() < FRAGMENT_LENGTH) {
+            text.append("Пункт ").append(turn).append('.').append(fragment)
+                    .append(": товар принимается по накладной, количество сверяется с заказом, ");
+        }
+        return text.substring(0, FRAGMENT_LENGTH);
+    }
+
+    private String answer(int turn) {
+        return ("Товар на точке " + turn + " принимает администратор смены: сверяет накладную с заказом, проверяет "
+                + "сроки годности и температуру, расхождения отмечает в акте и сообщает менеджеру. ").repeat(4);
+    }
+}
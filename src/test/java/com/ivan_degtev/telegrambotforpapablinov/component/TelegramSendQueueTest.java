@@ -0,0 +1,148 @@
+package com.ivan_degtev.telegrambotforpapablinov.component;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TelegramSendQueueTest {
+
+    private final static String PRIVATE_CHAT = "42";
+
+    private TelegramSendQueue queue;
+
+    @AfterEach
+    void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    void chatBucketAllowsBurstThenWaitsForRefill() throws Exception {
+        // 2 сообщения в секунду, burst 2: третий документ ждёт токен ~500 мс
+        queue = start(1000, 2, 2, 3);
+        List<Long> sentAtNanos = new ArrayList<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.DOCUMENT, () -> {
+                synchronized (sentAtNanos) {
+                    sentAtNanos.add(System.nanoTime());
+                }
+                return CompletableFuture.completedFuture("ok");
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        assertTrue(millisBetween(sentAtNanos.get(0), sentAtNanos.get(1)) < 200);
+        assertTrue(millisBetween(sentAtNanos.get(0), sentAtNanos.get(2)) >= 400);
+        assertEquals(3L, queue.getStats().get("sentDocuments"));
+    }
+
+    @Test
+    void globalBucketLimitsAllChats() throws Exception {
+        // весь бот - 2 в секунду, у чатов лимит свободный: третий запрос в другой чат всё равно ждёт
+        queue = start(2, 1000, 1000, 3);
+        List<Long> sentAtNanos = new ArrayList<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(queue.submit(String.valueOf(i), TelegramSendQueue.Lane.TEXT, () -> {
+                synchronized (sentAtNanos) {
+                    sentAtNanos.add(System.nanoTime());
+                }
+                return CompletableFuture.completedFuture("ok");
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        assertTrue(millisBetween(sentAtNanos.get(0), sentAtNanos.get(2)) >= 400);
+    }
+
+    @Test
+    void tooManyRequestsPausesChatForRetryAfterAndRetries() throws Exception {
+        queue = start(1000, 1000, 1000, 3);
+        AtomicInteger attempts = new AtomicInteger();
+        List<Long> sentAtNanos = new ArrayList<>();
+        TelegramApiRequestException tooManyRequests = tooManyRequests(1);
+
+        CompletableFuture<String> result = queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.TEXT, () -> {
+            synchronized (sentAtNanos) {
+                sentAtNanos.add(System.nanoTime());
+            }
+            if (attempts.incrementAndGet() == 1) {
+                throw tooManyRequests;
+            }
+            return CompletableFuture.completedFuture("ok");
+        });
+
+        assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertTrue(millisBetween(sentAtNanos.get(0), sentAtNanos.get(1)) >= 900);
+        assertEquals(1L, queue.getStats().get("rateLimited"));
+        assertEquals(1L, queue.getStats().get("retried"));
+    }
+
+    @Test
+    void tooManyRequestsFailsAfterMaxRetries() throws Exception {
+        queue = start(1000, 1000, 1000, 0);
+        TelegramApiRequestException tooManyRequests = tooManyRequests(1);
+
+        CompletableFuture<String> result = queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.TEXT,
+                () -> CompletableFuture.failedFuture(tooManyRequests));
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertEquals(tooManyRequests, error.getCause());
+        assertEquals(1L, queue.getStats().get("failed"));
+    }
+
+    @Test
+    void shutdownFailsQueuedSends() throws Exception {
+        // второй документ ждёт токен чата 100 секунд и к моменту остановки ещё в очереди
+        queue = start(1000, 0.01, 1, 3);
+        CompletableFuture<String> sent = queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.DOCUMENT,
+                () -> CompletableFuture.completedFuture("ok"));
+        CompletableFuture<String> queued = queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.DOCUMENT,
+                () -> CompletableFuture.completedFuture("ok"));
+        assertEquals("ok", sent.get(5, TimeUnit.SECONDS));
+
+        queue.shutdown();
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> queued.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, error.getCause());
+        CompletableFuture<String> afterShutdown = queue.submit(PRIVATE_CHAT, TelegramSendQueue.Lane.TEXT,
+                () -> CompletableFuture.completedFuture("ok"));
+        assertTrue(afterShutdown.isCompletedExceptionally());
+    }
+
+    private TelegramSendQueue start(double globalPerSecond, double privateChatPerSecond, int privateChatBurst, int maxRetries) {
+        TelegramSendQueue sendQueue = new TelegramSendQueue(globalPerSecond, privateChatPerSecond, privateChatBurst,
+                20, 3, 100, maxRetries);
+        sendQueue.start();
+        return sendQueue;
+    }
+
+    private TelegramApiRequestException tooManyRequests(int retryAfterSeconds) throws Exception {
+        ApiResponse<Object> response = new ObjectMapper().readValue("""
+                {"ok": false, "error_code": 429, "description": "Too Many Requests", "parameters": {"retry_after": %d}}
+                """.formatted(retryAfterSeconds), new TypeReference<>() {
+        });
+        return new TelegramApiRequestException("Too Many Requests", response);
+    }
+
+    private long millisBetween(long fromNanos, long toNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+    }
+}
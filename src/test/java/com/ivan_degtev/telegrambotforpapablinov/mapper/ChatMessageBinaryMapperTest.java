@@ -0,0 +1,74 @@
+package com.ivan_degtev.telegrambotforpapablinov.mapper;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ImageContent;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChatMessageBinaryMapperTest {
+
+    private final ChatMessageBinaryMapper mapper = new ChatMessageBinaryMapper();
+
+    @Test
+    void textMessagesRoundTrip() {
+        List<ChatMessage> messages = List.of(
+                SystemMessage.from("Вы внутренний ассистент компании"),
+                UserMessage.from("Где лежит регламент кассы?"),
+                UserMessage.from("ivan", "А приёмки товара?"),
+                AiMessage.from("В разделе 1.10.1"),
+                AiMessage.from("🙂".repeat(100_000))
+        );
+
+        messages.forEach(message -> assertEquals(message, mapper.fromBytes(mapper.toBytes(message))));
+    }
+
+    @Test
+    void toolMessagesRoundTrip() {
+        AiMessage toolCall = AiMessage.from(ToolExecutionRequest.builder()
+                .id("call_1")
+                .name("findFile")
+                .arguments("{\"name\": \"Регламент\"}")
+                .build());
+        ToolExecutionResultMessage result = ToolExecutionResultMessage.from("call_1", "findFile", "Регламент.pdf");
+        ToolExecutionResultMessage resultWithoutId = ToolExecutionResultMessage.from(null, null, "нет файла");
+
+        assertEquals(toolCall, mapper.fromBytes(mapper.toBytes(toolCall)));
+        assertEquals(result, mapper.fromBytes(mapper.toBytes(result)));
+        assertEquals(resultWithoutId, mapper.fromBytes(mapper.toBytes(resultWithoutId)));
+    }
+
+    @Test
+    void multiContentUserMessageGoesThroughJson() {
+        UserMessage message = UserMessage.from(
+                TextContent.from("Что на картинке?"),
+                ImageContent.from("https://example.com/menu.png"));
+
+        byte[] bytes = mapper.toBytes(message);
+
+        assertEquals(0, bytes[0]);
+        assertEquals(message, mapper.fromBytes(bytes));
+    }
+
+    @Test
+    void plainTextIsStoredWithoutJson() {
+        byte[] bytes = mapper.toBytes(UserMessage.from("привет"));
+
+        // тип + длина + 12 байт utf-8
+        assertEquals(1 + 4 + 12, bytes.length);
+    }
+
+    @Test
+    void unknownRecordTypeIsRejected() {
+        assertThrows(IllegalStateException.class, () -> mapper.fromBytes(new byte[]{42, 0, 0, 0, 0}));
+    }
+}